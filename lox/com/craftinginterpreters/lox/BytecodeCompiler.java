@@ -0,0 +1,465 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles the (resolved) Stmt/Expr trees into a Chunk for the VM.
+ * The Resolver must have run first: local variables are placed with the (depth, slot) pairs it recorded.
+ * Every block with locals gets a range of the VM's local slots, starting right after the ranges of the
+ * blocks that enclose it, so a (depth, slot) pair turns into one fixed index at compile time.
+ */
+class BytecodeCompiler implements   Expr.Visitor<Void>,
+                                    Stmt.Visitor<Void> {
+    private final Chunk chunk = new Chunk();
+    // First local slot of every enclosing block that has locals, innermost last
+    private final List<Integer> scopes = new ArrayList<>();
+    private int localCount = 0;
+    private final List<Loop> loops = new ArrayList<>();
+    // Tracked while emitting so that the VM can size its stack once
+    private int stackDepth = 0;
+    // Statements carry no Token, so errors about code size point at the last Token we have seen
+    private Token lastToken = null;
+
+    /**
+     * break and continue both jump forward: break to the end of the loop, continue to the increment (for)
+     * or to the jump back to the condition (while). The targets are unknown until the body is compiled.
+     */
+    private static class Loop {
+        final List<Integer> breakJumps = new ArrayList<>();
+        final List<Integer> continueJumps = new ArrayList<>();
+    }
+
+    Chunk compile(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+        emit(OpCode.RETURN, null);
+        return chunk;
+    }
+
+    // For REPL expression, the value gets printed just like Interpreter.interpret(Expr) does
+    Chunk compile(Expr expression) {
+        expression.accept(this);
+        emit(OpCode.PRINT, null);
+        pop(1);
+        emit(OpCode.RETURN, null);
+        return chunk;
+    }
+
+    private void emit(byte op, Token token) {
+        if (token != null) {
+            lastToken = token;
+        }
+        chunk.write(op, token);
+    }
+
+    private void error(Token token, String message) {
+        if (token != null) {
+            Lox.error(token, message);
+        }
+        else {
+            Lox.error(0, 0, "", message);
+        }
+    }
+
+    private void emitOperand(int operand) {
+        chunk.write((byte)((operand >> 8) & 0xff), null);
+        chunk.write((byte)(operand & 0xff), null);
+    }
+
+    private void emitWideOperand(int operand) {
+        chunk.write((byte)((operand >> 16) & 0xff), null);
+        emitOperand(operand);
+    }
+
+    /**
+     * An instruction with an index operand: the short form, or the wide one once the index needs 3 bytes
+     */
+    private void emitIndexed(byte op, byte wideOp, int index, Token token) {
+        if (index <= 0xffff) {
+            emit(op, token);
+            emitOperand(index);
+        }
+        else {
+            emit(wideOp, token);
+            emitWideOperand(index);
+        }
+    }
+
+    private void push(int n) {
+        stackDepth += n;
+        if (stackDepth > chunk.maxStack) {
+            chunk.maxStack = stackDepth;
+        }
+    }
+
+    private void pop(int n) {
+        stackDepth -= n;
+    }
+
+    private void emitConstant(Object value, Token token) {
+        int index = chunk.addConstant(value);
+        if (index < 0) {
+            error(token != null ? token : lastToken, "Too many constants in one script.");
+            return;
+        }
+        emitIndexed(OpCode.CONSTANT, OpCode.CONSTANT_WIDE, index, token);
+        push(1);
+    }
+
+    private int globalSlot(Token name) {
+        int slot = chunk.globalSlot(name.lexeme);
+        if (slot < 0) {
+            error(name, "Too many global variables in one script.");
+            return 0;
+        }
+        return slot;
+    }
+
+    /**
+     * Turn the Resolver's (depth, slot) pair into a VM local slot
+     */
+    private int localSlot(int depth, int slot) {
+        return scopes.get(scopes.size() - 1 - depth) + slot;
+    }
+
+    /**
+     * The operands of GET/SET_LOCAL_OR: the local, the global of the same name, then the locals to try before it
+     */
+    private void emitFallback(Token name, int depth, int slot, int[] fallback) {
+        emitOperand(localSlot(depth, slot));
+        emitWideOperand(globalSlot(name));
+        emitOperand(fallback.length / 2);
+        for (int i = 0; i < fallback.length; i += 2) {
+            emitOperand(localSlot(fallback[i], fallback[i + 1]));
+        }
+    }
+
+    /**
+     * Emit a forward jump with a placeholder offset, returns where the offset is so it can be patched
+     */
+    private int emitJump(byte op, Token token) {
+        emit(op, token);
+        emitOffset(-1);
+        return chunk.count - 4;
+    }
+
+    /**
+     * Point the jump at "offset" to the current end of the code
+     */
+    private void patchJump(int offset) {
+        int jump = chunk.count - offset - 4;
+        chunk.code[offset] = (byte)(jump >> 24);
+        chunk.code[offset + 1] = (byte)(jump >> 16);
+        chunk.code[offset + 2] = (byte)(jump >> 8);
+        chunk.code[offset + 3] = (byte)jump;
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP, null);
+        emitOffset(chunk.count - loopStart + 4);
+    }
+
+    // Jump offsets take 4 bytes: the top level of a big script is one chunk, any if or loop there can span most of it
+    private void emitOffset(int offset) {
+        emitOperand(offset >>> 16);
+        emitOperand(offset & 0xffff);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        // A block without locals is not a scope for the Resolver either (see Resolver.visitBlockStmt())
+        if (stmt.locals == 0) {
+            for (Stmt statement : stmt.statements) {
+                statement.accept(this);
+            }
+            return null;
+        }
+        int base = localCount;
+        scopes.add(base);
+        localCount += stmt.locals;
+        if (localCount > chunk.maxLocals) {
+            chunk.maxLocals = localCount;
+        }
+        // The slots still hold whatever the last block that used them (or the last iteration) left there,
+        // and a declaration that did not run ("if (c) for (var i ...)") must leave UNDEFINED, like in the Interpreter
+        emit(OpCode.UNDEFINE_LOCALS, null);
+        emitOperand(base);
+        emitOperand(stmt.locals);
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        // Reported once the block is compiled, so that the error points into it
+        if (localCount > 0xffff) {
+            error(lastToken, "Too many local variables in one script.");
+        }
+        scopes.remove(scopes.size() - 1);
+        // Sibling blocks can reuse the same slots, nothing can refer to them once the block is over
+        localCount = base;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression.accept(this);
+        emit(OpCode.POP, null);
+        pop(1);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        stmt.condition.accept(this);
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE, null);
+        emit(OpCode.POP, null);
+        pop(1);
+        stmt.thenBranch.accept(this);
+        int elseJump = emitJump(OpCode.JUMP, null);
+
+        patchJump(thenJump);
+        // On this path the condition is still on the stack
+        push(1);
+        emit(OpCode.POP, null);
+        pop(1);
+        if (stmt.elseBranch != null) {
+            stmt.elseBranch.accept(this);
+        }
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Loop loop = new Loop();
+        loops.add(loop);
+
+        int loopStart = chunk.count;
+        stmt.condition.accept(this);
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE, null);
+        emit(OpCode.POP, null);
+        pop(1);
+        stmt.body.accept(this);
+
+        for (int jump : loop.continueJumps) {
+            patchJump(jump);
+        }
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        push(1);
+        emit(OpCode.POP, null);
+        pop(1);
+
+        // break skips the POP above, the condition was already popped when the body started
+        for (int jump : loop.breakJumps) {
+            patchJump(jump);
+        }
+        loops.remove(loops.size() - 1);
+        return null;
+    }
+
+    /**
+     * Like the Interpreter, the for loop does not open a scope: the initializer's variable
+     * belongs to the enclosing block (or is a global).
+     */
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if (stmt.initializer != null) {
+            stmt.initializer.accept(this);
+        }
+        Loop loop = new Loop();
+        loops.add(loop);
+
+        int loopStart = chunk.count;
+        int exitJump = -1;
+        if (stmt.condition != null) {
+            stmt.condition.accept(this);
+            exitJump = emitJump(OpCode.JUMP_IF_FALSE, null);
+            emit(OpCode.POP, null);
+            pop(1);
+        }
+        stmt.body.accept(this);
+
+        for (int jump : loop.continueJumps) {
+            patchJump(jump);
+        }
+        if (stmt.increment != null) {
+            stmt.increment.accept(this);
+            emit(OpCode.POP, null);
+            pop(1);
+        }
+        emitLoop(loopStart);
+
+        if (exitJump != -1) {
+            patchJump(exitJump);
+            push(1);
+            emit(OpCode.POP, null);
+            pop(1);
+        }
+        for (int jump : loop.breakJumps) {
+            patchJump(jump);
+        }
+        loops.remove(loops.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        stmt.expression.accept(this);
+        emit(OpCode.PRINT, null);
+        pop(1);
+        return null;
+    }
+
+    /**
+     * Outside a loop the Interpreter throws its preallocated BreakException (or ContinueException),
+     * which only Interpreter.interpret() catches: the program stops there, so here we end the chunk
+     */
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        if (loops.isEmpty()) {
+            emit(OpCode.RETURN, null);
+            return null;
+        }
+        loops.get(loops.size() - 1).breakJumps.add(emitJump(OpCode.JUMP, null));
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        if (loops.isEmpty()) {
+            emit(OpCode.RETURN, null);
+            return null;
+        }
+        loops.get(loops.size() - 1).continueJumps.add(emitJump(OpCode.JUMP, null));
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            stmt.initializer.accept(this);
+        }
+        else {
+            emit(OpCode.NIL, null);
+            push(1);
+        }
+        if (stmt.slot >= 0) {
+            emit(OpCode.DEFINE_LOCAL, stmt.name);
+            emitOperand(localSlot(0, stmt.slot));
+        }
+        else {
+            emitIndexed(OpCode.DEFINE_GLOBAL, OpCode.DEFINE_GLOBAL_WIDE, globalSlot(stmt.name), stmt.name);
+        }
+        pop(1);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        expr.value.accept(this);
+        if (expr.fallback != null) {
+            emit(OpCode.SET_LOCAL_OR, expr.name);
+            emitFallback(expr.name, expr.depth, expr.slot, expr.fallback);
+        }
+        else if (expr.depth >= 0) {
+            emit(OpCode.SET_LOCAL, expr.name);
+            emitOperand(localSlot(expr.depth, expr.slot));
+        }
+        else {
+            emitIndexed(OpCode.SET_GLOBAL, OpCode.SET_GLOBAL_WIDE, globalSlot(expr.name), expr.name);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        switch (expr.operator.type) {
+            case PLUS: emit(OpCode.ADD, expr.operator); break;
+            case MINUS: emit(OpCode.SUBTRACT, expr.operator); break;
+            case STAR: emit(OpCode.MULTIPLY, expr.operator); break;
+            case SLASH: emit(OpCode.DIVIDE, expr.operator); break;
+            case GREATER: emit(OpCode.GREATER, expr.operator); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL, expr.operator); break;
+            case LESS: emit(OpCode.LESS, expr.operator); break;
+            case LESS_EQUAL: emit(OpCode.LESS_EQUAL, expr.operator); break;
+            case EQUAL_EQUAL: emit(OpCode.EQUAL, expr.operator); break;
+            case BANG_EQUAL: emit(OpCode.NOT_EQUAL, expr.operator); break;
+        }
+        pop(1);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        expr.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OpCode.NIL, null);
+            push(1);
+        }
+        else if (expr.value.equals(true)) {
+            emit(OpCode.TRUE, null);
+            push(1);
+        }
+        else if (expr.value.equals(false)) {
+            emit(OpCode.FALSE, null);
+            push(1);
+        }
+        else {
+            emitConstant(expr.value, null);
+        }
+        return null;
+    }
+
+    /**
+     * The left value stays on the stack as the result when we short-circuit,
+     * otherwise it is popped and the right value takes its place
+     */
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        expr.left.accept(this);
+        int endJump = emitJump(expr.operator.type == TokenType.OR ? OpCode.JUMP_IF_TRUE : OpCode.JUMP_IF_FALSE, null);
+        emit(OpCode.POP, null);
+        pop(1);
+        expr.right.accept(this);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        expr.right.accept(this);
+        if (expr.operator.type == TokenType.MINUS) {
+            emit(OpCode.NEGATE, expr.operator);
+        }
+        else {
+            emit(OpCode.NOT, expr.operator);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.fallback != null) {
+            emit(OpCode.GET_LOCAL_OR, expr.name);
+            emitFallback(expr.name, expr.depth, expr.slot, expr.fallback);
+        }
+        else if (expr.depth >= 0) {
+            emit(OpCode.GET_LOCAL, expr.name);
+            emitOperand(localSlot(expr.depth, expr.slot));
+        }
+        else {
+            emitIndexed(OpCode.GET_GLOBAL, OpCode.GET_GLOBAL_WIDE, globalSlot(expr.name), expr.name);
+        }
+        push(1);
+        return null;
+    }
+}
@@ -0,0 +1,75 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled program for the VM: the bytecode, its constant pool and the global slot names.
+ * For error reporting, every instruction that can fail at runtime keeps the Token it was compiled from,
+ * stored at the same index as its opcode in "tokens".
+ */
+class Chunk {
+    byte[] code = new byte[256];
+    Token[] tokens = new Token[256];
+    int count = 0;
+
+    final List<Object> constants = new ArrayList<>();
+    // Literal tables repeat the same values a lot, so each constant is only stored once
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    // The name of each global slot, and the slot of each global name
+    final List<String> globals = new ArrayList<>();
+    private final Map<String, Integer> globalIndex = new HashMap<>();
+
+    // Sizes the VM needs to allocate up front
+    int maxStack = 0;
+    int maxLocals = 0;
+
+    void write(byte b, Token token) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            tokens = Arrays.copyOf(tokens, count * 2);
+        }
+        code[count] = b;
+        tokens[count] = token;
+        count ++;
+    }
+
+    // The widest index an operand can hold, see OpCode.CONSTANT_WIDE
+    static final int MAX_INDEX = 0xffffff;
+
+    /**
+     * Returns -1 if the constant pool is full
+     */
+    int addConstant(Object value) {
+        Integer index = constantIndex.get(value);
+        if (index != null) {
+            return index;
+        }
+        if (constants.size() > MAX_INDEX) {
+            return -1;
+        }
+        constants.add(value);
+        constantIndex.put(value, constants.size() - 1);
+        return constants.size() - 1;
+    }
+
+    /**
+     * Same as addConstant(), a global name gets its slot on first use, whether that is a declaration or not
+     */
+    int globalSlot(String name) {
+        Integer index = globalIndex.get(name);
+        if (index != null) {
+            return index;
+        }
+        if (globals.size() > MAX_INDEX) {
+            return -1;
+        }
+        globals.add(name);
+        globalIndex.put(name, globals.size() - 1);
+        return globals.size() - 1;
+    }
+}
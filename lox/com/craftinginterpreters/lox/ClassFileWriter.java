@@ -0,0 +1,362 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of the JVM class file format (JVMS chapter 4) for the JvmCompiler, without any library.
+ * We write version 49 (Java 5) class files on purpose: from version 50 on, every method with a branch
+ * needs a StackMapTable, and computing one would make this file several times bigger.
+ * The JVM still verifies version 49 classes (by type inference) and JIT-compiles them like any other class.
+ */
+class ClassFileWriter {
+    // Access flags
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_SUPER = 0x0020;
+
+    // Opcodes, only the ones the JvmCompiler uses
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ACMPEQ = 0xa5;
+    static final int IF_ACMPNE = 0xa6;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ATHROW = 0xbf;
+    static final int IFNONNULL = 0xc7;
+
+    private final String className;
+    private final List<byte[]> constantPool = new ArrayList<>();
+    // Constant pool entries are deduplicated by their encoded bytes
+    private final Map<String, Integer> constantIndex = new HashMap<>();
+    private int constantCount = 1;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<MethodWriter> methods = new ArrayList<>();
+    private final int thisClass;
+    private final int superClass;
+
+    ClassFileWriter(String className) {
+        this.className = className;
+        thisClass = classRef(className);
+        superClass = classRef("java/lang/Object");
+    }
+
+    String className() {
+        return className;
+    }
+
+    /**
+     * The constant pool only has 65535 entries, the JvmCompiler checks this before writing the class
+     */
+    boolean constantPoolFull() {
+        return constantCount > 0xfff0;
+    }
+
+    private int constant(String key, byte[] entry, int slots) {
+        Integer index = constantIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        index = constantCount;
+        constantPool.add(entry);
+        constantIndex.put(key, index);
+        // A double takes two entries of the constant pool (JVMS 4.4.5)
+        constantCount += slots;
+        return index;
+    }
+
+    int utf8(String value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(1);
+            out.writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return constant("U" + value, bytes.toByteArray(), 1);
+    }
+
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return constant("C" + internalName, new byte[] {7, (byte)(name >> 8), (byte)name}, 1);
+    }
+
+    int string(String value) {
+        int utf8 = utf8(value);
+        return constant("S" + value, new byte[] {8, (byte)(utf8 >> 8), (byte)utf8}, 1);
+    }
+
+    int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        byte[] entry = new byte[9];
+        entry[0] = 6;
+        for (int i = 0; i < 8; i++) {
+            entry[1 + i] = (byte)(bits >> (56 - 8 * i));
+        }
+        return constant("D" + bits, entry, 2);
+    }
+
+    int integerConstant(int value) {
+        return constant("I" + value, new byte[] {
+                3, (byte)(value >> 24), (byte)(value >> 16), (byte)(value >> 8), (byte)value
+        }, 1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        int n = utf8(name);
+        int d = utf8(descriptor);
+        return constant("N" + name + ":" + descriptor,
+                new byte[] {12, (byte)(n >> 8), (byte)n, (byte)(d >> 8), (byte)d}, 1);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int c = classRef(owner);
+        int nt = nameAndType(name, descriptor);
+        return constant(tag + owner + "." + name + ":" + descriptor,
+                new byte[] {(byte)tag, (byte)(c >> 8), (byte)c, (byte)(nt >> 8), (byte)nt}, 1);
+    }
+
+    void addField(int access, String name, String descriptor) {
+        int n = utf8(name);
+        int d = utf8(descriptor);
+        fields.add(new byte[] {
+                (byte)(access >> 8), (byte)access, (byte)(n >> 8), (byte)n, (byte)(d >> 8), (byte)d, 0, 0
+        });
+    }
+
+    MethodWriter addMethod(int access, String name, String descriptor) {
+        MethodWriter method = new MethodWriter(this, access, utf8(name), utf8(descriptor));
+        methods.add(method);
+        return method;
+    }
+
+    byte[] toByteArray() {
+        int code = utf8("Code");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(constantCount);
+            for (byte[] entry : constantPool) {
+                out.write(entry);
+            }
+            out.writeShort(ACC_PUBLIC | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            // No interfaces
+            out.writeShort(0);
+            out.writeShort(fields.size());
+            for (byte[] field : fields) {
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for (MethodWriter method : methods) {
+                method.write(out, code);
+            }
+            // No class attributes
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A branch target. Forward branches are patched once the label is placed.
+     */
+    static class Label {
+        int position = -1;
+        // For each branch to this label: where the branch instruction starts
+        final List<Integer> branches = new ArrayList<>();
+    }
+
+    static class MethodWriter {
+        private final ClassFileWriter owner;
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private byte[] code = new byte[256];
+        private int length = 0;
+        int maxStack = 0;
+        int maxLocals = 0;
+        private final List<int[]> exceptionTable = new ArrayList<>();
+        // Set when a branch does not fit in 16 bits
+        boolean branchOverflow = false;
+
+        private MethodWriter(ClassFileWriter owner, int access, int name, int descriptor) {
+            this.owner = owner;
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        int length() {
+            return length;
+        }
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        void op(int opcode, int u2Operand) {
+            u1(opcode);
+            u2(u2Operand);
+        }
+
+        /**
+         * For the *LOAD and *STORE opcodes, which take a 1-byte index unless they are "wide"
+         */
+        void local(int opcode, int index) {
+            if (index > 0xff) {
+                // wide
+                u1(0xc4);
+                u1(opcode);
+                u2(index);
+            }
+            else {
+                u1(opcode);
+                u1(index);
+            }
+        }
+
+        void pushInt(int value) {
+            if (value == 0) {
+                op(ICONST_0);
+            }
+            else if (value == 1) {
+                op(ICONST_1);
+            }
+            else if (value >= -128 && value <= 127) {
+                u1(BIPUSH);
+                u1(value);
+            }
+            else if (value >= -32768 && value <= 32767) {
+                u1(SIPUSH);
+                u2(value);
+            }
+            else {
+                op(LDC_W, owner.integerConstant(value));
+            }
+        }
+
+        void branch(int opcode, Label label) {
+            int start = length;
+            u1(opcode);
+            if (label.position >= 0) {
+                branchOffset(label.position - start);
+            }
+            else {
+                label.branches.add(start);
+                u2(0);
+            }
+        }
+
+        void place(Label label) {
+            label.position = length;
+            for (int start : label.branches) {
+                int offset = label.position - start;
+                if (offset > Short.MAX_VALUE) {
+                    branchOverflow = true;
+                }
+                code[start + 1] = (byte)(offset >> 8);
+                code[start + 2] = (byte)offset;
+            }
+            label.branches.clear();
+        }
+
+        private void branchOffset(int offset) {
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                branchOverflow = true;
+            }
+            u2(offset);
+        }
+
+        /**
+         * catchType is a CONSTANT_Class index, the range [start, end) is in code positions
+         */
+        void addExceptionHandler(int start, int end, int handler, int catchType) {
+            exceptionTable.add(new int[] {start, end, handler, catchType});
+        }
+
+        private void u1(int value) {
+            if (length == code.length) {
+                code = java.util.Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = (byte)value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        private void write(DataOutputStream out, int codeAttributeName) throws IOException {
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            // Only one attribute: Code
+            out.writeShort(1);
+            out.writeShort(codeAttributeName);
+            out.writeInt(12 + length + 8 * exceptionTable.size());
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            out.writeShort(exceptionTable.size());
+            for (int[] entry : exceptionTable) {
+                for (int value : entry) {
+                    out.writeShort(value);
+                }
+            }
+            // No attributes of the Code attribute
+            out.writeShort(0);
+        }
+    }
+}
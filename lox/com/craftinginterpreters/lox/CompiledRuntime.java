@@ -0,0 +1,88 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * Helpers that the classes generated by the JvmCompiler call into.
+ * A generated class is defined by its own class loader, so it is NOT in the same runtime package
+ * as this one even though the names match: everything it touches here has to be public.
+ * Errors carry the lexeme, line and column of the Token they come from, as the generated code has no Tokens.
+ */
+public final class CompiledRuntime {
+    // Value of a global or a local that has not been defined yet, null is a legit value (nil)
+    public static final Object UNDEFINED = new Object();
+
+    private CompiledRuntime() {}
+
+    public static Object[] globals(int count) {
+        Object[] globals = new Object[count];
+        java.util.Arrays.fill(globals, UNDEFINED);
+        return globals;
+    }
+
+    public static RuntimeError undefined(String name, int line, int column) {
+        return new RuntimeError(token(name, line, column), "Undefined variable '" + name + "'.");
+    }
+
+    /**
+     * Unbox one operand of a binary numeric operator, see Interpreter.evaluateNumber()
+     */
+    public static double number(Object value, String operator, int line, int column) {
+        if (value instanceof Double) {
+            return (double)value;
+        }
+        throw new RuntimeError(token(operator, line, column), "Operands must be numbers.");
+    }
+
+    /**
+     * Unbox the operand of unary minus
+     */
+    public static double operand(Object value, String operator, int line, int column) {
+        if (value instanceof Double) {
+            return (double)value;
+        }
+        throw new RuntimeError(token(operator, line, column), "Operand must be a number.");
+    }
+
+    public static Object add(Object left, Object right, String operator, int line, int column) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left + (double)right;
+        }
+        else if (left instanceof String && right instanceof String) {
+            return (String)left + (String)right;
+        }
+        // Challenge 7.2, p109
+        else if (left instanceof String || right instanceof String) {
+            return left.toString() + right.toString();
+        }
+        throw new RuntimeError(token(operator, line, column), "Both operands must be numbers or Strings");
+    }
+
+    public static boolean isTruthy(Object value) {
+        return Interpreter.isTruthy(value);
+    }
+
+    public static boolean isEqual(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    public static void print(Object value) {
+        Output.print(value);
+    }
+
+    public static void flush() {
+        Output.flush();
+    }
+
+    /**
+     * A saved class runs on its own, without Lox and without the source code,
+     * so its main() cannot use Lox.runtimeError() and reports the error by itself
+     */
+    public static void report(RuntimeError error) {
+        Output.flush();
+        System.err.println("[line " + error.token.line + "] Error: " + error.getMessage());
+        System.exit(70);
+    }
+
+    private static Token token(String lexeme, int line, int column) {
+        return new Token(TokenType.IDENTIFIER, lexeme, null, line, column);
+    }
+}
@@ -0,0 +1,116 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A script that stays open while it is being edited, for an editor or a live-reload daemon.
+ * This is the entry point from outside the package, so it is public, and so is everything it hands out:
+ * tokens are described by their index, with plain ints and the name of their TokenType.
+ *
+ * Every edit() scans again only the tokens around the edit (see Scanner.relex()), and once the script
+ * has been parsed by run(), only parses again the declarations and blocks the edit damaged (see Parser.reparse()).
+ * Offsets are in bytes of the UTF-8 source, like everywhere in the Scanner.
+ * Errors are reported like for a script, for the text that was scanned or parsed again.
+ */
+public class Document {
+    private SourceFile source;
+    private TokenBuffer tokens;
+    // Parsed by the first run(), then parsed again by every edit(): relex() only links a buffer to the one before
+    private SyntaxTree tree = null;
+
+    public Document(String text) {
+        this(new SourceFile(text));
+    }
+
+    public static Document open(Path path) throws IOException {
+        return new Document(SourceFile.map(path));
+    }
+
+    private Document(SourceFile source) {
+        this.source = source;
+        this.tokens = new Scanner(source).scanTokens();
+    }
+
+    /**
+     * Replace the bytes [offset, offset + removed) of the source with text
+     */
+    public void edit(int offset, int removed, String text) {
+        int length = source.bytes().limit();
+        if (offset < 0 || removed < 0 || offset + removed > length) {
+            throw new IllegalArgumentException(
+                "Cannot replace [" + offset + ", " + (offset + removed) + ") of a " + length + "-byte source");
+        }
+        SourceFile edited = source.edit(offset, removed, text);
+        tokens = new Scanner(edited).relex(tokens, offset, removed);
+        source = edited;
+        if (tree != null) {
+            tree = new Parser(tokens, source).reparse(tree);
+        }
+    }
+
+    /**
+     * Parse the script and run it, like Lox runs a file. Returns false if it did not run because of a parse error,
+     * or if it stopped on a runtime error. A scanning error does not stop it: it was reported when the text
+     * was scanned, and the Scanner left the characters out of the tokens.
+     */
+    public boolean run() {
+        if (tree().hadError()) {
+            return false;
+        }
+        Lox.hadError = false;
+        Lox.hadRuntimeError = false;
+        Lox.run(source, tree.statements);
+        return !Lox.hadError && !Lox.hadRuntimeError;
+    }
+
+    public String text() {
+        return SourceFile.decode(source.bytes(), 0, source.bytes().limit());
+    }
+
+    /**
+     * The number of tokens, the last one is the EOF
+     */
+    public int tokenCount() {
+        return tokens.size();
+    }
+
+    /**
+     * The name of the TokenType of a token ("IDENTIFIER", "LEFT_BRACE"...)
+     */
+    public String tokenType(int index) {
+        return tokens.type(index).name();
+    }
+
+    public int tokenStart(int index) {
+        return tokens.start(index);
+    }
+
+    public int tokenLength(int index) {
+        return tokens.length(index);
+    }
+
+    // Lines and columns start at 0, like in error messages
+    public int tokenLine(int index) {
+        return tokens.line(index);
+    }
+
+    public int tokenColumn(int index) {
+        return tokens.column(index);
+    }
+
+    SourceFile source() {
+        return source;
+    }
+
+    TokenBuffer tokens() {
+        return tokens;
+    }
+
+    SyntaxTree tree() {
+        if (tree == null) {
+            tree = new Parser(tokens, source).parseTree();
+        }
+        return tree;
+    }
+}
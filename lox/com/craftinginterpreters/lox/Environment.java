@@ -1,7 +1,6 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class Environment {
     /** Each environment has a pointer pointing to its enclosing parent;
@@ -9,17 +8,46 @@ class Environment {
      *  The top environment (global) should have NULL as its "enclosing" member
      */
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    /** Only the global environment keeps its variables by name,
+     *  as globals can be redefined (REPL) and used before they are declared (see note 01);
+     *  The name is the symbol of the Token (see SymbolTable), which indexes this array: no hashing at all
+     */
+    private Binding[] values;
+    /** A block environment keeps its variables in a flat array, indexed by the slot the Resolver assigned;
+     *  The names are not needed at runtime, every node that touches a slot still carries its Token for error messages
+     */
+    private final Object[] slots;
+    /** What a slot holds until its declaration runs, which is not nil: the name-based lookup went on
+     *  to the enclosing environments then, and the reads that can see it still do (see Resolver)
+     */
+    static final Object UNDEFINED = new Object();
+
+    /**
+     * A global variable lives in its own Binding, which is created once and never replaced,
+     * not even by a redefinition. So Expr.Variable and Expr.Assign nodes can cache the Binding
+     * after their first lookup and skip the lookup from then on.
+     */
+    static class Binding {
+        Object value;
+    }
 
     Environment() {
         enclosing = null;
+        values = new Binding[64];
+        slots = null;
     }
 
-    Environment(Environment enclosing) {
+    /**
+     * size is the number of variables declared in the block (Stmt.Block.locals)
+     */
+    Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        values = null;
+        slots = new Object[size];
+        Arrays.fill(slots, UNDEFINED);
     }
 
-    void define(String name, Object value) {
+    void define(Token name, Object value) {
         /**
          * This is define AND redefine,
          * value of the same name can be modified.
@@ -28,7 +56,33 @@ class Environment {
          * var meal = "Western";
          * Technically, it's weird to have it in non-REPL, though
          */
-        values.put(name, value);
+        Binding binding = lookup(name);
+        if (binding == null) {
+            if (name.symbol >= values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, name.symbol + 1));
+            }
+            binding = new Binding();
+            values[name.symbol] = binding;
+        }
+        binding.value = value;
+    }
+
+    private Binding lookup(Token name) {
+        if (name.symbol < 0 || name.symbol >= values.length) {
+            return null;
+        }
+        return values[name.symbol];
+    }
+
+    /**
+     * Back to UNDEFINED in every slot, for a block environment that is reused (see Interpreter.loopEnvironment())
+     */
+    void clear() {
+        Arrays.fill(slots, UNDEFINED);
+    }
+
+    void define(int slot, Object value) {
+        slots[slot] = value;
     }
 
     Object get(Token name) {
@@ -36,8 +90,9 @@ class Environment {
          *  If we cannot locate it we move up to its enclosing environment;
          *  Until we hit the global, then we report an error if we cannot locate it
          */
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+        Binding binding = lookup(name);
+        if (binding != null) {
+            return binding.value;
         }
         // This is pretty clever. We avoid recursion by simplu calling the enclosing environment's get(). If the first if {} block does return something non-null, the program stops above and wouldn't reach here
         if (enclosing != null) {
@@ -55,8 +110,9 @@ class Environment {
          * If the map of values already contains it, then simply mutate the value,
          * otherwise throw an error -- looks like Lox does NOT allow assigning before definition
          */
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+        Binding binding = lookup(name);
+        if (binding != null) {
+            binding.value = value;
             // return is a MUST to avoid falling to the next statements
             return;
         }
@@ -69,4 +125,43 @@ class Environment {
                 "Undefined variable '" + name.lexeme + "'."
         );
     }
+
+    /**
+     * Same as get(), but hands out the Binding itself so that the caller can cache it
+     */
+    Binding binding(Token name) {
+        Binding binding = lookup(name);
+        if (binding != null) {
+            return binding;
+        }
+        throw new RuntimeError(
+                name,
+                "Undefined variable '" + name.lexeme + "'."
+        );
+    }
+
+    /**
+     * The Resolver already knows how many environments away the variable lives,
+     * so we simply hop up "distance" times instead of searching every level
+     */
+    Environment ancestor(int distance) {
+        Environment environment = this;
+        for (int i = 0; i < distance; i++) {
+            environment = environment.enclosing;
+        }
+        return environment;
+    }
+
+    /**
+     * The Resolver guarantees that the variable is declared in that environment,
+     * so there is no need to check anything or to report an error here.
+     * If its declaration did not run, the slot still holds UNDEFINED (see Resolver).
+     */
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
+    }
+
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
+    }
 }
@@ -25,6 +25,10 @@ abstract class Expr {
 
 		final Token name;
 		final Expr value;
+		int depth = -1;
+		int slot = -1;
+		int[] fallback = null;
+		Environment.Binding global = null;
 	}
 	static class Binary extends Expr {
 		Binary(Expr left, Token operator, Expr right) {
@@ -41,6 +45,8 @@ abstract class Expr {
 		final Expr left;
 		final Token operator;
 		final Expr right;
+		boolean numeric = false;
+		int state = 0;
 	}
 	static class Grouping extends Expr {
 		Grouping(Expr expression) {
@@ -95,6 +101,7 @@ abstract class Expr {
 
 		final Token operator;
 		final Expr right;
+		boolean numeric = false;
 	}
 	static class Variable extends Expr {
 		Variable(Token name) {
@@ -107,6 +114,10 @@ abstract class Expr {
 		}
 
 		final Token name;
+		int depth = -1;
+		int slot = -1;
+		int[] fallback = null;
+		Environment.Binding global = null;
 	}
 
 	abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,117 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A program for the FlatInterpreter (Lox --flat): the resolved tree, but in one int array instead of
+ * Expr and Stmt objects. A tree node is an object header, a few fields and a pointer per child
+ * (plus an ArrayList for a block), all over the heap: for a big program that is several times
+ * the size of the source, and walking it jumps from one cache line to another.
+ * Here a node is a few consecutive ints of "code": its kind, then its operands (the list below).
+ * A child is the index of the child node. The FlatEncoder writes the children before their parent,
+ * so an expression is one contiguous run of the array, in the order it is evaluated.
+ *
+ * Values are in the constant pool, globals are indexed by the symbol of their name (see SymbolTable),
+ * and locals by a fixed slot (like for the VM, see FlatEncoder). The nodes that can fail at runtime
+ * keep the line and the column of their Token, right after their kind, for the error message.
+ */
+final class FlatAst {
+    // Expressions
+    static final int CONSTANT = 0;          // constant
+    static final int GET_LOCAL = 1;         // local
+    static final int GET_GLOBAL = 2;        // line, column, symbol
+    static final int SET_LOCAL = 3;         // local, value
+    static final int SET_GLOBAL = 4;        // line, column, symbol, value
+    // The binary operators: line, column, left, right
+    static final int ADD = 5;
+    static final int SUBTRACT = 6;
+    static final int MULTIPLY = 7;
+    static final int DIVIDE = 8;
+    static final int GREATER = 9;
+    static final int GREATER_EQUAL = 10;
+    static final int LESS = 11;
+    static final int LESS_EQUAL = 12;
+    static final int EQUAL = 13;
+    static final int NOT_EQUAL = 14;
+    static final int NEGATE = 15;           // line, column, operand
+    static final int NOT = 16;              // operand
+    static final int AND = 17;              // left, right
+    static final int OR = 18;               // left, right
+    // Statements, -1 for a part that is not there
+    static final int EXPRESSION = 19;       // expression
+    static final int PRINT = 20;            // expression
+    static final int DEFINE_LOCAL = 21;     // local, initializer
+    static final int DEFINE_GLOBAL = 22;    // symbol, initializer
+    static final int BLOCK = 23;            // first local, local count, count, statement...
+    static final int IF = 24;               // condition, then, else
+    static final int WHILE = 25;            // condition, body
+    static final int FOR = 26;              // initializer, condition, increment, body
+    static final int BREAK = 27;
+    static final int CONTINUE = 28;
+    // A local whose declaration may not have run: the first defined of the locals (its own, then its
+    // fallback slots, see Resolver.fallback()), else the global
+    static final int GET_LOCAL_OR = 29;     // line, column, symbol, local count, local...
+    static final int SET_LOCAL_OR = 30;     // line, column, symbol, value, local count, local...
+
+    int[] code = new int[256];
+    int count = 0;
+
+    Object[] constants = new Object[16];
+    int constantCount = 0;
+    // Literal tables repeat the same values a lot, so each constant is only stored once
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    // The name of every symbol used as a global (null for the others), for "Undefined variable" errors
+    String[] names = new String[16];
+    int maxLocals = 0;
+
+    // The top-level statements, in the order they run
+    int[] statements = new int[16];
+    int statementCount = 0;
+
+    /**
+     * Add a node of size ints, its kind included, and return its index: the caller writes the operands
+     */
+    int node(int kind, int size) {
+        if (count + size > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, count + size));
+        }
+        int node = count;
+        code[node] = kind;
+        count += size;
+        return node;
+    }
+
+    int addConstant(Object value) {
+        Integer index = constantIndex.get(value);
+        if (index != null) {
+            return index;
+        }
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        constantIndex.put(value, constantCount);
+        return constantCount++;
+    }
+
+    /**
+     * The slot of a global is the symbol of its name
+     */
+    int global(Token name) {
+        if (name.symbol >= names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, name.symbol + 1));
+        }
+        names[name.symbol] = name.lexeme;
+        return name.symbol;
+    }
+
+    void addStatement(int node) {
+        if (statementCount == statements.length) {
+            statements = Arrays.copyOf(statements, statementCount * 2);
+        }
+        statements[statementCount++] = node;
+    }
+}
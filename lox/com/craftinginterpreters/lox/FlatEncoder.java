@@ -0,0 +1,290 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.FlatAst.*;
+
+/**
+ * Encodes the (resolved) Stmt/Expr trees into a FlatAst, every visit returns the index of its node.
+ * Lox --flat encodes each top-level statement as soon as the Parser is done with it (see Parser.parse(Consumer)),
+ * so the tree of the whole program is never in memory, only the tree of one statement at a time.
+ * Locals get fixed slots exactly like in the BytecodeCompiler: every block with locals takes a range
+ * of slots right after the ranges of the blocks that enclose it.
+ */
+class FlatEncoder implements    Expr.Visitor<Integer>,
+                                Stmt.Visitor<Integer> {
+    private final FlatAst ast = new FlatAst();
+    // First local slot of every enclosing block that has locals, innermost last
+    private final List<Integer> scopes = new ArrayList<>();
+    private int localCount = 0;
+
+    void encode(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            // The parser leaves a null behind for a declaration it could not parse, nothing runs anyway
+            if (statement != null) {
+                ast.addStatement(statement.accept(this));
+            }
+        }
+    }
+
+    // For REPL expression, the value gets printed just like Interpreter.interpret(Expr) does
+    void encode(Expr expression) {
+        int value = expression.accept(this);
+        int node = ast.node(PRINT, 2);
+        ast.code[node + 1] = value;
+        ast.addStatement(node);
+    }
+
+    FlatAst finish() {
+        return ast;
+    }
+
+    /**
+     * Turn the Resolver's (depth, slot) pair into a fixed local slot
+     */
+    private int localSlot(int depth, int slot) {
+        return scopes.get(scopes.size() - 1 - depth) + slot;
+    }
+
+    /**
+     * A GET/SET_LOCAL_OR node: line, column and symbol, then at "counted" the number of locals,
+     * the local itself first and its fallback slots after it
+     */
+    private int localOr(int kind, int counted, Token name, int depth, int slot, int[] fallback) {
+        int count = 1 + fallback.length / 2;
+        int node = ast.node(kind, counted + 1 + count);
+        ast.code[node + 1] = name.line;
+        ast.code[node + 2] = name.column;
+        ast.code[node + 3] = ast.global(name);
+        ast.code[node + counted] = count;
+        ast.code[node + counted + 1] = localSlot(depth, slot);
+        for (int i = 0; i < fallback.length; i += 2) {
+            ast.code[node + counted + 2 + i / 2] = localSlot(fallback[i], fallback[i + 1]);
+        }
+        return node;
+    }
+
+    // -1 for a part that is not there (no else branch, no initializer...)
+    private int child(Stmt stmt) {
+        return stmt == null ? -1 : stmt.accept(this);
+    }
+
+    private int child(Expr expr) {
+        return expr == null ? -1 : expr.accept(this);
+    }
+
+    @Override
+    public Integer visitBlockStmt(Stmt.Block stmt) {
+        // A block without locals is not a scope for the Resolver either (see Resolver.visitBlockStmt())
+        int base = localCount;
+        if (stmt.locals > 0) {
+            scopes.add(base);
+            localCount += stmt.locals;
+            if (localCount > ast.maxLocals) {
+                ast.maxLocals = localCount;
+            }
+        }
+        int[] children = new int[stmt.statements.size()];
+        int count = 0;
+        for (Stmt statement : stmt.statements) {
+            if (statement != null) {
+                children[count++] = statement.accept(this);
+            }
+        }
+        if (stmt.locals > 0) {
+            scopes.remove(scopes.size() - 1);
+            // Sibling blocks can reuse the same slots, nothing can refer to them once the block is over
+            localCount = base;
+        }
+        int node = ast.node(BLOCK, 4 + count);
+        ast.code[node + 1] = base;
+        ast.code[node + 2] = stmt.locals;
+        ast.code[node + 3] = count;
+        System.arraycopy(children, 0, ast.code, node + 4, count);
+        return node;
+    }
+
+    @Override
+    public Integer visitExpressionStmt(Stmt.Expression stmt) {
+        int expression = child(stmt.expression);
+        int node = ast.node(EXPRESSION, 2);
+        ast.code[node + 1] = expression;
+        return node;
+    }
+
+    @Override
+    public Integer visitIfStmt(Stmt.If stmt) {
+        int condition = child(stmt.condition);
+        int thenBranch = child(stmt.thenBranch);
+        int elseBranch = child(stmt.elseBranch);
+        int node = ast.node(IF, 4);
+        ast.code[node + 1] = condition;
+        ast.code[node + 2] = thenBranch;
+        ast.code[node + 3] = elseBranch;
+        return node;
+    }
+
+    @Override
+    public Integer visitWhileStmt(Stmt.While stmt) {
+        int condition = child(stmt.condition);
+        int body = child(stmt.body);
+        int node = ast.node(WHILE, 3);
+        ast.code[node + 1] = condition;
+        ast.code[node + 2] = body;
+        return node;
+    }
+
+    /**
+     * Like the Interpreter, the for loop does not open a scope: the initializer's variable
+     * belongs to the enclosing block (or is a global).
+     */
+    @Override
+    public Integer visitForStmt(Stmt.For stmt) {
+        int initializer = child(stmt.initializer);
+        int condition = child(stmt.condition);
+        int increment = child(stmt.increment);
+        int body = child(stmt.body);
+        int node = ast.node(FOR, 5);
+        ast.code[node + 1] = initializer;
+        ast.code[node + 2] = condition;
+        ast.code[node + 3] = increment;
+        ast.code[node + 4] = body;
+        return node;
+    }
+
+    @Override
+    public Integer visitPrintStmt(Stmt.Print stmt) {
+        int expression = child(stmt.expression);
+        int node = ast.node(PRINT, 2);
+        ast.code[node + 1] = expression;
+        return node;
+    }
+
+    @Override
+    public Integer visitBreakStmt(Stmt.Break stmt) {
+        return ast.node(BREAK, 1);
+    }
+
+    @Override
+    public Integer visitContinueStmt(Stmt.Continue stmt) {
+        return ast.node(CONTINUE, 1);
+    }
+
+    @Override
+    public Integer visitVarStmt(Stmt.Var stmt) {
+        int initializer = child(stmt.initializer);
+        int node;
+        if (stmt.slot >= 0) {
+            node = ast.node(DEFINE_LOCAL, 3);
+            ast.code[node + 1] = localSlot(0, stmt.slot);
+        }
+        else {
+            node = ast.node(DEFINE_GLOBAL, 3);
+            ast.code[node + 1] = ast.global(stmt.name);
+        }
+        ast.code[node + 2] = initializer;
+        return node;
+    }
+
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+        int value = child(expr.value);
+        if (expr.fallback != null) {
+            int node = localOr(SET_LOCAL_OR, 5, expr.name, expr.depth, expr.slot, expr.fallback);
+            ast.code[node + 4] = value;
+            return node;
+        }
+        if (expr.depth >= 0) {
+            int node = ast.node(SET_LOCAL, 3);
+            ast.code[node + 1] = localSlot(expr.depth, expr.slot);
+            ast.code[node + 2] = value;
+            return node;
+        }
+        int node = ast.node(SET_GLOBAL, 5);
+        ast.code[node + 1] = expr.name.line;
+        ast.code[node + 2] = expr.name.column;
+        ast.code[node + 3] = ast.global(expr.name);
+        ast.code[node + 4] = value;
+        return node;
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+        int left = child(expr.left);
+        int right = child(expr.right);
+        int kind;
+        switch (expr.operator.type) {
+            case PLUS: kind = ADD; break;
+            case MINUS: kind = SUBTRACT; break;
+            case STAR: kind = MULTIPLY; break;
+            case SLASH: kind = DIVIDE; break;
+            case GREATER: kind = GREATER; break;
+            case GREATER_EQUAL: kind = GREATER_EQUAL; break;
+            case LESS: kind = LESS; break;
+            case LESS_EQUAL: kind = LESS_EQUAL; break;
+            case EQUAL_EQUAL: kind = EQUAL; break;
+            default: kind = NOT_EQUAL; break;
+        }
+        int node = ast.node(kind, 5);
+        ast.code[node + 1] = expr.operator.line;
+        ast.code[node + 2] = expr.operator.column;
+        ast.code[node + 3] = left;
+        ast.code[node + 4] = right;
+        return node;
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+        return child(expr.expression);
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+        int node = ast.node(CONSTANT, 2);
+        ast.code[node + 1] = ast.addConstant(expr.value);
+        return node;
+    }
+
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+        int left = child(expr.left);
+        int right = child(expr.right);
+        int node = ast.node(expr.operator.type == TokenType.OR ? OR : AND, 3);
+        ast.code[node + 1] = left;
+        ast.code[node + 2] = right;
+        return node;
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+        int operand = child(expr.right);
+        if (expr.operator.type == TokenType.MINUS) {
+            int node = ast.node(NEGATE, 4);
+            ast.code[node + 1] = expr.operator.line;
+            ast.code[node + 2] = expr.operator.column;
+            ast.code[node + 3] = operand;
+            return node;
+        }
+        int node = ast.node(NOT, 2);
+        ast.code[node + 1] = operand;
+        return node;
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+        if (expr.fallback != null) {
+            return localOr(GET_LOCAL_OR, 4, expr.name, expr.depth, expr.slot, expr.fallback);
+        }
+        if (expr.depth >= 0) {
+            int node = ast.node(GET_LOCAL, 2);
+            ast.code[node + 1] = localSlot(expr.depth, expr.slot);
+            return node;
+        }
+        int node = ast.node(GET_GLOBAL, 4);
+        ast.code[node + 1] = expr.name.line;
+        ast.code[node + 2] = expr.name.column;
+        ast.code[node + 3] = ast.global(expr.name);
+        return node;
+    }
+}
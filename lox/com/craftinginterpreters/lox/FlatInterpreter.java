@@ -0,0 +1,277 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+import static com.craftinginterpreters.lox.FlatAst.*;
+
+/**
+ * Walks a FlatAst (Lox --flat): the same recursive evaluation as the Interpreter,
+ * but a node is an index into one int array, and we switch on its kind instead of calling accept().
+ * The behaviour (values, printing, error messages) must be the same as the Interpreter's.
+ */
+class FlatInterpreter {
+    // Marks a global or a local that has not been defined yet, null is a legit value (nil)
+    private static final Object UNDEFINED = new Object();
+
+    /**
+     * What execute() returns: the statement ran to its end, or a break/continue leaves the statements
+     * around it up to its loop. A return value instead of the Interpreter's exceptions,
+     * as execute() is one method: every statement that runs others simply passes it on.
+     */
+    private static final int NORMAL = 0;
+    private static final int BREAK_LOOP = 1;
+    private static final int CONTINUE_LOOP = 2;
+
+    private final FlatAst ast;
+    // Copied from the FlatAst, that does not change any more
+    private final int[] code;
+    private final Object[] constants;
+    private final Object[] locals;
+    private final Object[] globals;
+
+    FlatInterpreter(FlatAst ast) {
+        this.ast = ast;
+        this.code = ast.code;
+        this.constants = ast.constants;
+        this.locals = new Object[ast.maxLocals];
+        this.globals = new Object[ast.names.length];
+        Arrays.fill(globals, UNDEFINED);
+    }
+
+    void interpret() {
+        try {
+            for (int i = 0; i < ast.statementCount; i++) {
+                // A break/continue that is not in a loop stops the program
+                if (execute(ast.statements[i]) != NORMAL) {
+                    return;
+                }
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    private int execute(int node) {
+        switch (code[node]) {
+            case EXPRESSION:
+                evaluate(code[node + 1]);
+                return NORMAL;
+            case PRINT:
+                Output.print(evaluate(code[node + 1]));
+                return NORMAL;
+            case DEFINE_LOCAL:
+                locals[code[node + 1]] = code[node + 2] < 0 ? null : evaluate(code[node + 2]);
+                return NORMAL;
+            case DEFINE_GLOBAL:
+                // Redefinition is allowed, see Environment.define()
+                globals[code[node + 1]] = code[node + 2] < 0 ? null : evaluate(code[node + 2]);
+                return NORMAL;
+            case BLOCK: {
+                // The slots still hold whatever the last block that used them (or the last iteration) left there,
+                // and a declaration that did not run ("if (c) for (var i ...)") must leave UNDEFINED, like in the Interpreter
+                Arrays.fill(locals, code[node + 1], code[node + 1] + code[node + 2], UNDEFINED);
+                int end = node + 4 + code[node + 3];
+                for (int child = node + 4; child < end; child++) {
+                    int status = execute(code[child]);
+                    if (status != NORMAL) {
+                        return status;
+                    }
+                }
+                return NORMAL;
+            }
+            case IF:
+                if (Interpreter.isTruthy(evaluate(code[node + 1]))) {
+                    return execute(code[node + 2]);
+                }
+                if (code[node + 3] >= 0) {
+                    return execute(code[node + 3]);
+                }
+                return NORMAL;
+            case WHILE:
+                while (Interpreter.isTruthy(evaluate(code[node + 1]))) {
+                    if (execute(code[node + 2]) == BREAK_LOOP) {
+                        break;
+                    }
+                }
+                return NORMAL;
+            case FOR: {
+                // No scope of its own, see FlatEncoder.visitForStmt()
+                if (code[node + 1] >= 0) {
+                    int status = execute(code[node + 1]);
+                    if (status != NORMAL) {
+                        return status;
+                    }
+                }
+                int condition = code[node + 2];
+                int increment = code[node + 3];
+                while (condition < 0 || Interpreter.isTruthy(evaluate(condition))) {
+                    if (execute(code[node + 4]) == BREAK_LOOP) {
+                        break;
+                    }
+                    // The increment still runs after a continue
+                    if (increment >= 0) {
+                        evaluate(increment);
+                    }
+                }
+                return NORMAL;
+            }
+            case BREAK:
+                return BREAK_LOOP;
+            case CONTINUE:
+                return CONTINUE_LOOP;
+        }
+        // Next line should not be reachable
+        return NORMAL;
+    }
+
+    private Object evaluate(int node) {
+        switch (code[node]) {
+            case CONSTANT:
+                return constants[code[node + 1]];
+            case GET_LOCAL:
+                return locals[code[node + 1]];
+            case GET_GLOBAL: {
+                Object value = globals[code[node + 3]];
+                if (value == UNDEFINED) {
+                    throw undefined(node);
+                }
+                return value;
+            }
+            case SET_LOCAL: {
+                Object value = evaluate(code[node + 2]);
+                locals[code[node + 1]] = value;
+                return value;
+            }
+            case SET_GLOBAL: {
+                Object value = evaluate(code[node + 4]);
+                if (globals[code[node + 3]] == UNDEFINED) {
+                    throw undefined(node);
+                }
+                globals[code[node + 3]] = value;
+                return value;
+            }
+            case GET_LOCAL_OR: {
+                int end = node + 5 + code[node + 4];
+                for (int local = node + 5; local < end; local++) {
+                    Object value = locals[code[local]];
+                    if (value != UNDEFINED) {
+                        return value;
+                    }
+                }
+                Object value = globals[code[node + 3]];
+                if (value == UNDEFINED) {
+                    throw undefined(node);
+                }
+                return value;
+            }
+            case SET_LOCAL_OR: {
+                Object value = evaluate(code[node + 4]);
+                int end = node + 6 + code[node + 5];
+                for (int local = node + 6; local < end; local++) {
+                    if (locals[code[local]] != UNDEFINED) {
+                        locals[code[local]] = value;
+                        return value;
+                    }
+                }
+                if (globals[code[node + 3]] == UNDEFINED) {
+                    throw undefined(node);
+                }
+                globals[code[node + 3]] = value;
+                return value;
+            }
+            case ADD: {
+                Object left = evaluate(code[node + 3]);
+                Object right = evaluate(code[node + 4]);
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left + (double)right;
+                }
+                else if (left instanceof String && right instanceof String) {
+                    return (String)left + (String)right;
+                }
+                // Challenge 7.2, p109
+                else if (left instanceof String || right instanceof String) {
+                    return left.toString() + right.toString();
+                }
+                throw new RuntimeError(token(node), "Both operands must be numbers or Strings");
+            }
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL: {
+                Object left = evaluate(code[node + 3]);
+                Object right = evaluate(code[node + 4]);
+                if (!(left instanceof Double) || !(right instanceof Double)) {
+                    throw new RuntimeError(token(node), "Operands must be numbers.");
+                }
+                double a = (double)left;
+                double b = (double)right;
+                switch (code[node]) {
+                    case SUBTRACT: return a - b;
+                    case MULTIPLY: return a * b;
+                    case DIVIDE: return a / b;
+                    case GREATER: return a > b;
+                    case GREATER_EQUAL: return a >= b;
+                    case LESS: return a < b;
+                    default: return a <= b;
+                }
+            }
+            case EQUAL:
+                return Interpreter.isEqual(evaluate(code[node + 3]), evaluate(code[node + 4]));
+            case NOT_EQUAL:
+                return !Interpreter.isEqual(evaluate(code[node + 3]), evaluate(code[node + 4]));
+            case NEGATE: {
+                Object operand = evaluate(code[node + 3]);
+                if (!(operand instanceof Double)) {
+                    throw new RuntimeError(token(node), "Operand must be a number.");
+                }
+                return -(double)operand;
+            }
+            case NOT:
+                return !Interpreter.isTruthy(evaluate(code[node + 1]));
+            case AND: {
+                Object left = evaluate(code[node + 1]);
+                return Interpreter.isTruthy(left) ? evaluate(code[node + 2]) : left;
+            }
+            case OR: {
+                Object left = evaluate(code[node + 1]);
+                return Interpreter.isTruthy(left) ? left : evaluate(code[node + 2]);
+            }
+        }
+        // Next line should not be reachable
+        return null;
+    }
+
+    private RuntimeError undefined(int node) {
+        Token name = token(node);
+        return new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    /**
+     * The Token a node that failed was encoded from, for the error message: only its line and column are kept
+     */
+    private Token token(int node) {
+        int line = code[node + 1];
+        int column = code[node + 2];
+        switch (code[node]) {
+            case GET_GLOBAL:
+            case SET_GLOBAL:
+            case GET_LOCAL_OR:
+            case SET_LOCAL_OR: {
+                int symbol = code[node + 3];
+                return new Token(TokenType.IDENTIFIER, ast.names[symbol], null, line, column, symbol);
+            }
+            case ADD: return new Token(TokenType.PLUS, "+", null, line, column);
+            case SUBTRACT: return new Token(TokenType.MINUS, "-", null, line, column);
+            case MULTIPLY: return new Token(TokenType.STAR, "*", null, line, column);
+            case DIVIDE: return new Token(TokenType.SLASH, "/", null, line, column);
+            case GREATER: return new Token(TokenType.GREATER, ">", null, line, column);
+            case GREATER_EQUAL: return new Token(TokenType.GREATER_EQUAL, ">=", null, line, column);
+            case LESS: return new Token(TokenType.LESS, "<", null, line, column);
+            case LESS_EQUAL: return new Token(TokenType.LESS_EQUAL, "<=", null, line, column);
+            default: return new Token(TokenType.MINUS, "-", null, line, column);
+        }
+    }
+}
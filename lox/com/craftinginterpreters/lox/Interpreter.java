@@ -7,15 +7,47 @@ import static com.craftinginterpreters.lox.TokenType.*;
 
 class Interpreter implements    Expr.Visitor<Object>,
                                 Stmt.Visitor<Void>  {
-    private final String source;
+    private final SourceFile source;
     // private static class InterpretError extends RuntimeException {}
-    private boolean breakSignal = false;
-    private boolean continueSignal = false;
+
+    /**
+     * "break" and "continue" unwind the Java stack up to the loop that runs them.
+     * There is only one instance of each and it carries no stack trace, so throwing one costs
+     * about as much as a goto, and nothing is checked on the way when no loop control happens.
+     */
+    @SuppressWarnings("serial")
+    private static final class BreakException extends RuntimeException {
+        BreakException() {
+            super(null, null, false, false);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class ContinueException extends RuntimeException {
+        ContinueException() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final BreakException BREAK = new BreakException();
+    private static final ContinueException CONTINUE = new ContinueException();
+
+    /**
+     * Type feedback for "+" (Expr.Binary.state), see visitBinaryExpr():
+     * a node starts UNSPECIALIZED, specializes on the operand types it sees the first time,
+     * and falls back to GENERIC for good once its guard fails
+     */
+    private static final int UNSPECIALIZED = 0;
+    private static final int NUMBERS = 1;
+    private static final int STRINGS = 2;
+    private static final int GENERIC = 3;
 
     // Adding an environment for IDENTIFIERs
-    private Environment environment = new Environment();
+    // globals is the top environment, anything the Resolver cannot find in a block lives here
+    final Environment globals = new Environment();
+    private Environment environment = globals;
 
-    Interpreter(String source) {
+    Interpreter(SourceFile source) {
         this.source = source;
     }
     /**
@@ -30,6 +62,8 @@ class Interpreter implements    Expr.Visitor<Object>,
             }
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
+        } catch (BreakException | ContinueException outsideLoop) {
+            // A break/continue that is not in a loop stops the program
         }
     }
 
@@ -37,7 +71,7 @@ class Interpreter implements    Expr.Visitor<Object>,
     void interpret(Expr expression) {
         try {
             Object value = evaluate(expression);
-            System.out.println(stringify(value));
+            Output.print(value);
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
         }
@@ -50,12 +84,12 @@ class Interpreter implements    Expr.Visitor<Object>,
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
         if (expr.operator.type == MINUS) {
-            checkNumberOperand(expr.operator, right);
-            return -(double)right;
+            // Boxed only once, here, instead of once per nested operator
+            return evaluateNumber(expr);
         }
-        else if (expr.operator.type == BANG) {
+        Object right = evaluate(expr.right);
+        if (expr.operator.type == BANG) {
             return !isTruthy(right);
         }
         // Next line should not be reachable
@@ -64,54 +98,148 @@ class Interpreter implements    Expr.Visitor<Object>,
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
-
         // In this stage we only consider numerical operands
         switch(expr.operator.type) {
             case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left + (double) right;
+                if (expr.numeric) {
+                    return evaluateNumber(expr);
                 }
-                else if (left instanceof String && right instanceof String) {
-                    return (String) left + (String) right;
+                Object left = evaluate(expr.left);
+                Object right = evaluate(expr.right);
+                // Specialized paths, each guarded by the type check they rely on
+                if (expr.state == NUMBERS) {
+                    if (left instanceof Double && right instanceof Double) {
+                        return (double) left + (double) right;
+                    }
                 }
-                // Challenge 7.2, p109
-                else if (left instanceof String || right instanceof String) {
-                    return left.toString() + right.toString();
+                else if (expr.state == STRINGS) {
+                    if (left instanceof String && right instanceof String) {
+                        return (String) left + (String) right;
+                    }
                 }
-                // If it reaches here then the types are wrong
-                throw new RuntimeError(expr.operator, "Both operands must be numbers or Strings");
+                return add(expr, left, right);
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left / (double)right;
+                return evaluateNumber(expr);
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left >= (double)right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left < (double) right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left <= (double) right;
+                // Boolean.valueOf() hands back a cached instance, no allocation here
+                return compareNumbers(expr);
             case EQUAL_EQUAL:
-                return isEqual(left, right);
+                return isEqual(evaluate(expr.left), evaluate(expr.right));
             case BANG_EQUAL:
-                return !isEqual(left, right);
+                return !isEqual(evaluate(expr.left), evaluate(expr.right));
         }
         // Next line should not be reachable
         return null;
     }
 
+    /**
+     * The generic "+", which also records the operand types for the specialized paths in visitBinaryExpr().
+     * An UNSPECIALIZED node specializes on what it sees now; any other node only gets here
+     * because its guard failed (or it is already GENERIC), so it stops specializing.
+     */
+    private Object add(Expr.Binary expr, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            expr.state = expr.state == UNSPECIALIZED ? NUMBERS : GENERIC;
+            return (double) left + (double) right;
+        }
+        else if (left instanceof String && right instanceof String) {
+            expr.state = expr.state == UNSPECIALIZED ? STRINGS : GENERIC;
+            return (String) left + (String) right;
+        }
+        expr.state = GENERIC;
+        // Challenge 7.2, p109
+        if (left instanceof String || right instanceof String) {
+            return left.toString() + right.toString();
+        }
+        // If it reaches here then the types are wrong
+        throw new RuntimeError(expr.operator, "Both operands must be numbers or Strings");
+    }
+
+    /**
+     * The unboxed path: evaluate an expression the Resolver marked as numeric (see Resolver.isNumeric())
+     * straight to a primitive double, so "a * b + c * d" allocates one Double at the very end instead of three.
+     * Operands that are not numeric themselves (variables, for example) are evaluated the usual way and checked,
+     * but only after BOTH operands are evaluated, to keep the same order of evaluation and errors as before.
+     */
+    private double evaluateNumber(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            boolean leftNumeric = Resolver.isNumeric(binary.left);
+            boolean rightNumeric = Resolver.isNumeric(binary.right);
+            double left = 0;
+            double right = 0;
+            Object leftValue = null;
+            Object rightValue = null;
+            if (leftNumeric) left = evaluateNumber(binary.left);
+            else leftValue = evaluate(binary.left);
+            if (rightNumeric) right = evaluateNumber(binary.right);
+            else rightValue = evaluate(binary.right);
+            if ((!leftNumeric && !(leftValue instanceof Double)) || (!rightNumeric && !(rightValue instanceof Double))) {
+                throw new RuntimeError(binary.operator, "Operands must be numbers.");
+            }
+            if (!leftNumeric) left = (double)leftValue;
+            if (!rightNumeric) right = (double)rightValue;
+
+            switch (binary.operator.type) {
+                case PLUS: return left + right;
+                case MINUS: return left - right;
+                case STAR: return left * right;
+                case SLASH: return left / right;
+            }
+            // Next line should not be reachable
+            return Double.NaN;
+        }
+        else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (Resolver.isNumeric(unary.right)) {
+                return -evaluateNumber(unary.right);
+            }
+            Object right = evaluate(unary.right);
+            checkNumberOperand(unary.operator, right);
+            return -(double)right;
+        }
+        else if (expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping)expr).expression);
+        }
+        // Only a number literal is left
+        return (double)((Expr.Literal)expr).value;
+    }
+
+    /**
+     * Same operand handling as evaluateNumber(), but the result of a comparison is a boolean
+     */
+    private boolean compareNumbers(Expr.Binary expr) {
+        boolean leftNumeric = Resolver.isNumeric(expr.left);
+        boolean rightNumeric = Resolver.isNumeric(expr.right);
+        double left = 0;
+        double right = 0;
+        Object leftValue = null;
+        Object rightValue = null;
+        if (leftNumeric) left = evaluateNumber(expr.left);
+        else leftValue = evaluate(expr.left);
+        if (rightNumeric) right = evaluateNumber(expr.right);
+        else rightValue = evaluate(expr.right);
+        if ((!leftNumeric && !(leftValue instanceof Double)) || (!rightNumeric && !(rightValue instanceof Double))) {
+            throw new RuntimeError(expr.operator, "Operands must be numbers.");
+        }
+        if (!leftNumeric) left = (double)leftValue;
+        if (!rightNumeric) right = (double)rightValue;
+
+        switch (expr.operator.type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
+        }
+        // Next line should not be reachable
+        return false;
+    }
+
     // This one is for variable declaration (var a = "blah";)
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
@@ -120,14 +248,31 @@ class Interpreter implements    Expr.Visitor<Object>,
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme, value);
+        if (stmt.slot >= 0) {
+            environment.define(stmt.slot, value);
+        }
+        else {
+            globals.define(stmt.name, value);
+        }
         return null;
     }
 
     // This one is for variable expression (print(a);)
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return environment.get(expr.name);
+        if (expr.depth >= 0) {
+            Object value = environment.getAt(expr.depth, expr.slot);
+            if (value == Environment.UNDEFINED) {
+                return undefinedLocal(expr.name, expr.fallback);
+            }
+            return value;
+        }
+        // A global is looked up by name only once, after that the node keeps its Binding
+        // (lookups of a name that is not defined yet keep throwing and are never cached)
+        if (expr.global == null) {
+            expr.global = globals.binding(expr.name);
+        }
+        return expr.global.value;
     }
 
     /**
@@ -136,10 +281,47 @@ class Interpreter implements    Expr.Visitor<Object>,
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
+        if (expr.depth >= 0) {
+            if (expr.fallback != null && environment.getAt(expr.depth, expr.slot) == Environment.UNDEFINED) {
+                assignUndefinedLocal(expr.name, expr.fallback, value);
+            }
+            else {
+                environment.assignAt(expr.depth, expr.slot, value);
+            }
+        }
+        else {
+            if (expr.global == null) {
+                expr.global = globals.binding(expr.name);
+            }
+            expr.global.value = value;
+        }
         return value;
     }
 
+    /**
+     * The declaration of the local did not run (see Resolver), so the name is looked up
+     * where it used to be: the same name in the enclosing blocks (fallback), then the global
+     */
+    private Object undefinedLocal(Token name, int[] fallback) {
+        for (int i = 0; i < fallback.length; i += 2) {
+            Object value = environment.getAt(fallback[i], fallback[i + 1]);
+            if (value != Environment.UNDEFINED) {
+                return value;
+            }
+        }
+        return globals.binding(name).value;
+    }
+
+    private void assignUndefinedLocal(Token name, int[] fallback, Object value) {
+        for (int i = 0; i < fallback.length; i += 2) {
+            if (environment.getAt(fallback[i], fallback[i + 1]) != Environment.UNDEFINED) {
+                environment.assignAt(fallback[i], fallback[i + 1], value);
+                return;
+            }
+        }
+        globals.binding(name).value = value;
+    }
+
     @Override
     public Object visitLogicalExpr(Expr.Logical expr) {
         Object left_value = evaluate(expr.left);
@@ -181,18 +363,15 @@ class Interpreter implements    Expr.Visitor<Object>,
 
     @Override
     public Void visitWhileStmt(Stmt.While whileStmt) {
-        // "break" should send a signal to all subsequent execute()
-        // and while loop should reset this signal on quit
-        // "continue" should send a signal to all subsequent execute()
-        // and reset within the while loop because continue just skips one loop
+        // "break" leaves the loop, "continue" only leaves the body, see BreakException
+        Environment bodyEnvironment = loopEnvironment(whileStmt.body);
         while (isTruthy(evaluate(whileStmt.condition))) {
-            execute(whileStmt.body);
-            if (breakSignal) {
-                breakSignal = false;
+            try {
+                executeLoopBody(whileStmt.body, bodyEnvironment);
+            } catch (BreakException e) {
                 break;
-            }
-            if (continueSignal) {
-                continueSignal = false;
+            } catch (ContinueException e) {
+                // Next iteration
             }
         }
         return null;
@@ -203,14 +382,14 @@ class Interpreter implements    Expr.Visitor<Object>,
         if (forStmt.initializer != null) {
             execute(forStmt.initializer);
         }
+        Environment bodyEnvironment = loopEnvironment(forStmt.body);
         while (forStmt.condition == null || isTruthy(evaluate(forStmt.condition))) {
-            execute(forStmt.body);
-            if (breakSignal) {
-                breakSignal = false;
+            try {
+                executeLoopBody(forStmt.body, bodyEnvironment);
+            } catch (BreakException e) {
                 break;
-            }
-            if (continueSignal) {
-                continueSignal = false;
+            } catch (ContinueException e) {
+                // The increment still runs
             }
             if (forStmt.increment != null) {
                 evaluate(forStmt.increment);
@@ -222,20 +401,18 @@ class Interpreter implements    Expr.Visitor<Object>,
     @Override
     public Void visitPrintStmt(Stmt.Print printStmt) {
         Object value = evaluate(printStmt.expression);
-        System.out.println(stringify(value));
+        Output.print(value);
         return null;
     }
 
     @Override
     public Void visitBreakStmt(Stmt.Break breakStmt) {
-        breakSignal = true;
-        return null;
+        throw BREAK;
     }
 
     @Override
     public Void visitContinueStmt(Stmt.Continue continueStmt) {
-        continueSignal = true;
-        return null;
+        throw CONTINUE;
     }
 
     @Override
@@ -248,7 +425,7 @@ class Interpreter implements    Expr.Visitor<Object>,
      * If it's boolean, return its own value;
      * If it's everything else, it is recognized as true;
      */
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) {
             return false;
         }
@@ -258,7 +435,7 @@ class Interpreter implements    Expr.Visitor<Object>,
         return true;
     }
 
-    private boolean isEqual(Object left, Object right) {
+    static boolean isEqual(Object left, Object right) {
         if (left == null && right == null) {
             return true;
         }
@@ -275,17 +452,50 @@ class Interpreter implements    Expr.Visitor<Object>,
     }
 
     private void execute(Stmt stmt) {
-        if ((!breakSignal) && (!continueSignal)) {
-            stmt.accept(this);
-        }
+        stmt.accept(this);
     }
 
+    /**
+     * A block without declarations (locals == 0) runs directly in the current environment,
+     * the Resolver did not count it as a scope either
+     */
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        if (stmt.locals == 0) {
+            for (Stmt statement : stmt.statements) {
+                execute(statement);
+            }
+            return null;
+        }
+        executeBlock(stmt.statements, new Environment(environment, stmt.locals));
         return null;
     }
 
+    /**
+     * A loop body block gets ONE environment for the whole loop instead of one per iteration.
+     * This is safe because Lox has no closures (yet), so nothing can hold on to the environment
+     * of an old iteration. An iteration does not always define every slot before it reads it
+     * ("if (c) for (var i ...)" declares i into the body only when c holds), so executeLoopBody()
+     * clears the slots first, and a read sees UNDEFINED like in a fresh environment, not the previous value.
+     * Once functions arrive, a body whose variables are captured must go back to a fresh environment.
+     */
+    private Environment loopEnvironment(Stmt body) {
+        if (body instanceof Stmt.Block && ((Stmt.Block)body).locals > 0) {
+            return new Environment(environment, ((Stmt.Block)body).locals);
+        }
+        return null;
+    }
+
+    private void executeLoopBody(Stmt body, Environment bodyEnvironment) {
+        if (bodyEnvironment != null) {
+            bodyEnvironment.clear();
+            executeBlock(((Stmt.Block)body).statements, bodyEnvironment);
+        }
+        else {
+            execute(body);
+        }
+    }
+
     /**
      * Save current environment and then restore it at the end
      */
@@ -314,16 +524,6 @@ class Interpreter implements    Expr.Visitor<Object>,
         }
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
-        // Check whether both left and right objects are numbers
-        if (left instanceof Double && right instanceof Double) {
-            return;
-        }
-        else {
-            throw new RuntimeError(operator, "Operands must be numbers.");
-        }
-    }
-
 //    private Interpreter.InterpretError error(Token token, String message) {
 //        // Lox.error(token, message);
 //        String line = source.split("\n")[token.line];
@@ -336,7 +536,7 @@ class Interpreter implements    Expr.Visitor<Object>,
      * If numerical -> truncate to integer format if ended with ".0";
      * Other cases  -> simply call toString()
      */
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) {
             return "nil";
         }
@@ -0,0 +1,761 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.ClassFileWriter.*;
+
+/**
+ * Compiles the (resolved) Stmt/Expr trees ahead of time into a JVM class, see ClassFileWriter.
+ * The generated class looks roughly like:
+ *
+ *      public class Script {
+ *          static Object[] globals = CompiledRuntime.globals(n);
+ *          private static Object c0;                   // boxed number constants, created on first use
+ *          public static void main(String[] args)      // run() then flush the output, errors reported by CompiledRuntime.report()
+ *          public static void run()                    // calls part0(), part1()... until one returns false
+ *          private static boolean part0()              // the top-level statements
+ *      }
+ *
+ * - Local variables become JVM locals: every block with locals gets a range of slots, like in the BytecodeCompiler;
+ * - Expressions the Resolver marked as numeric are computed on unboxed doubles (dadd, dcmpl...);
+ * - Anything dynamic ("+" on unknown types, equality, truthiness, printing) calls into CompiledRuntime.
+ * The top-level statements are spread over several part methods, as a JVM method cannot be longer than 64KB.
+ * This is fine because the top level has no locals, only globals, so nothing lives across two parts.
+ * A part returns false when a break/continue outside of any loop stops the program (as in the Interpreter).
+ */
+class JvmCompiler implements    Expr.Visitor<Void>,
+                                Stmt.Visitor<Void> {
+    private static final String RUNTIME = "com/craftinginterpreters/lox/CompiledRuntime";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    // Start a new part method once the current one is that long
+    private static final int PART_LENGTH = 30000;
+    private static final int MAX_METHOD_LENGTH = 65535;
+
+    private final ClassFileWriter classFile;
+    private final String className;
+    private MethodWriter method;
+    private int partCount = 0;
+
+    // First local slot of every enclosing block that has locals, innermost last
+    private final List<Integer> scopes = new ArrayList<>();
+    private int localCount = 0;
+    // Scratch locals used while evaluating a binary operator, after the variables
+    private int tempCount = 0;
+    // Nesting of the expression being compiled, used to size the operand stack of the method
+    private int depth = 0;
+    private int maxDepth = 0;
+
+    private final List<Loop> loops = new ArrayList<>();
+    private final Map<String, Integer> globalIndex = new HashMap<>();
+    // Field name of each boxed number constant, keyed by its bits
+    private final Map<Long, String> numberFields = new HashMap<>();
+
+    private static class Loop {
+        final Label breakLabel = new Label();
+        final Label continueLabel = new Label();
+    }
+
+    JvmCompiler(String className) {
+        this.className = className;
+        this.classFile = new ClassFileWriter(className);
+    }
+
+    /**
+     * A Java identifier made from the name of the script, "LoxScript" if there is nothing usable
+     */
+    static String classNameFor(String path) {
+        String name = java.nio.file.Paths.get(path).getFileName().toString();
+        int dot = name.indexOf('.');
+        if (dot >= 0) {
+            name = name.substring(0, dot);
+        }
+        StringBuilder builder = new StringBuilder();
+        for (char c : name.toCharArray()) {
+            if (Character.isJavaIdentifierPart(c)) {
+                builder.append(builder.length() == 0 ? Character.toUpperCase(c) : c);
+            }
+        }
+        if (builder.length() == 0 || !Character.isJavaIdentifierStart(builder.charAt(0))) {
+            return "LoxScript";
+        }
+        return builder.toString();
+    }
+
+    byte[] compile(List<Stmt> statements) {
+        beginPart();
+        for (Stmt statement : statements) {
+            if (method.length() > PART_LENGTH) {
+                endPart();
+                beginPart();
+            }
+            statement.accept(this);
+            if (method.length() > MAX_METHOD_LENGTH || method.branchOverflow) {
+                error("Statement is too large to compile to a JVM method.");
+                return null;
+            }
+        }
+        endPart();
+        return finish();
+    }
+
+    // For REPL expression, the value gets printed just like Interpreter.interpret(Expr) does
+    byte[] compile(Expr expression) {
+        beginPart();
+        compileObject(expression);
+        method.op(INVOKESTATIC, classFile.methodRef(RUNTIME, "print", "(" + OBJECT + ")V"));
+        endPart();
+        return finish();
+    }
+
+    /**
+     * Define the class with its own class loader and call its run() method, reporting errors like the Interpreter
+     */
+    static void run(String className, byte[] bytes) {
+        ClassLoader loader = new ClassLoader(JvmCompiler.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                if (name.equals(className)) {
+                    return defineClass(name, bytes, 0, bytes.length);
+                }
+                throw new ClassNotFoundException(name);
+            }
+        };
+        try {
+            loader.loadClass(className).getMethod("run").invoke(null);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeError) {
+                Lox.runtimeError((RuntimeError)e.getCause());
+            }
+            else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            else {
+                throw new IllegalStateException(e.getCause());
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void error(String message) {
+        Lox.error(0, 0, "", message);
+    }
+
+    private void beginPart() {
+        method = classFile.addMethod(ACC_PRIVATE | ACC_STATIC, "part" + partCount, "()Z");
+        partCount ++;
+        maxDepth = 0;
+    }
+
+    private void endPart() {
+        // Reaching the end means the program goes on with the next part
+        method.op(ICONST_1);
+        method.op(IRETURN);
+        // Each level of nesting keeps at most one (double) value on the stack,
+        // the deepest level calls a CompiledRuntime helper with up to 5 arguments (7 slots)
+        method.maxStack = 2 * maxDepth + 8;
+    }
+
+    private byte[] finish() {
+        if (classFile.constantPoolFull()) {
+            error("Script has too many constants to compile to a JVM class.");
+            return null;
+        }
+        classFile.addField(ACC_STATIC, "globals", "[" + OBJECT);
+        for (String field : numberFields.values()) {
+            classFile.addField(ACC_PRIVATE | ACC_STATIC, field, OBJECT);
+        }
+
+        MethodWriter clinit = classFile.addMethod(ACC_STATIC, "<clinit>", "()V");
+        clinit.pushInt(globalIndex.size());
+        clinit.op(INVOKESTATIC, classFile.methodRef(RUNTIME, "globals", "(I)[" + OBJECT));
+        clinit.op(PUTSTATIC, classFile.fieldRef(className, "globals", "[" + OBJECT));
+        clinit.op(RETURN);
+        clinit.maxStack = 1;
+
+        MethodWriter run = classFile.addMethod(ACC_PUBLIC | ACC_STATIC, "run", "()V");
+        Label end = new Label();
+        for (int i = 0; i < partCount; i++) {
+            run.op(INVOKESTATIC, classFile.methodRef(className, "part" + i, "()Z"));
+            run.branch(IFEQ, end);
+        }
+        run.place(end);
+        run.op(RETURN);
+        run.maxStack = 1;
+
+        MethodWriter main = classFile.addMethod(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V");
+        main.op(INVOKESTATIC, classFile.methodRef(className, "run", "()V"));
+        main.op(INVOKESTATIC, classFile.methodRef(RUNTIME, "flush", "()V"));
+        main.op(RETURN);
+        int handler = main.length();
+        main.op(INVOKESTATIC, classFile.methodRef(RUNTIME, "report", "(Lcom/craftinginterpreters/lox/RuntimeError;)V"));
+        main.op(RETURN);
+        main.addExceptionHandler(0, handler, handler, classFile.classRef("com/craftinginterpreters/lox/RuntimeError"));
+        main.maxStack = 1;
+        main.maxLocals = 1;
+
+        return classFile.toByteArray();
+    }
+
+    private void useLocals(int count) {
+        if (count > method.maxLocals) {
+            method.maxLocals = count;
+        }
+    }
+
+    private int allocateTemp() {
+        // Every temp takes 2 slots, so it can hold a double as well as an Object
+        int temp = localCount + tempCount;
+        tempCount += 2;
+        useLocals(localCount + tempCount);
+        return temp;
+    }
+
+    private void freeTemp() {
+        tempCount -= 2;
+    }
+
+    private int localSlot(int depth, int slot) {
+        return scopes.get(scopes.size() - 1 - depth) + slot;
+    }
+
+    private int globalSlot(Token name) {
+        Integer slot = globalIndex.get(name.lexeme);
+        if (slot == null) {
+            slot = globalIndex.size();
+            globalIndex.put(name.lexeme, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Push the lexeme, line and column of a Token: the last three arguments of the CompiledRuntime helpers
+     */
+    private void pushToken(Token token) {
+        method.op(LDC_W, classFile.string(token.lexeme));
+        method.pushInt(token.line);
+        method.pushInt(token.column);
+    }
+
+    private void pushGlobals() {
+        method.op(GETSTATIC, classFile.fieldRef(className, "globals", "[" + OBJECT));
+    }
+
+    /**
+     * Throws "Undefined variable" unless the global at "slot" has been defined. Leaves the stack alone.
+     */
+    private void checkDefined(Token name, int slot) {
+        Label defined = new Label();
+        pushGlobals();
+        method.pushInt(slot);
+        method.op(AALOAD);
+        method.op(GETSTATIC, classFile.fieldRef(RUNTIME, "UNDEFINED", OBJECT));
+        method.branch(IF_ACMPNE, defined);
+        pushToken(name);
+        // The lexeme of the Token is the name of the variable
+        method.op(INVOKESTATIC, classFile.methodRef(RUNTIME, "undefined",
+                "(Ljava/lang/String;II)Lcom/craftinginterpreters/lox/RuntimeError;"));
+        method.op(ATHROW);
+        method.place(defined);
+    }
+
+    /**
+     * Turn the boolean (int) on the stack into Boolean.TRUE/Boolean.FALSE;
+     * with "negate" an int 0 gives TRUE
+     */
+    private void boxBoolean(boolean negate) {
+        Label isFalse = new Label();
+        Label end = new Label();
+        method.branch(negate ? IFNE : IFEQ, isFalse);
+        method.op(GETSTATIC, classFile.fieldRef("java/lang/Boolean", "TRUE", "Ljava/lang/Boolean;"));
+        method.branch(GOTO, end);
+        method.place(isFalse);
+        method.op(GETSTATIC, classFile.fieldRef("java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;"));
+        method.place(end);
+    }
+
+    // Expressions
+
+    /**
+     * Leaves the value of the expression on the stack as an Object
+     */
+    private void compileObject(Expr expr) {
+        depth ++;
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        if (Resolver.isNumeric(expr) && !(expr instanceof Expr.Literal)) {
+            // Boxed only once, at the boundary, like Interpreter.evaluateNumber()
+            compileNumber(expr);
+            method.op(INVOKESTATIC, classFile.methodRef("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;"));
+        }
+        else {
+            expr.accept(this);
+        }
+        depth --;
+    }
+
+    /**
+     * Leaves the value of an expression the Resolver marked as numeric on the stack as a double
+     */
+    private void compileNumber(Expr expr) {
+        depth ++;
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            compileNumberOperands(binary);
+            switch (binary.operator.type) {
+                case PLUS: method.op(DADD); break;
+                case MINUS: method.op(DSUB); break;
+                case STAR: method.op(DMUL); break;
+                case SLASH: method.op(DDIV); break;
+            }
+        }
+        else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (Resolver.isNumeric(unary.right)) {
+                compileNumber(unary.right);
+            }
+            else {
+                compileObject(unary.right);
+                pushToken(unary.operator);
+                method.op(INVOKESTATIC, classFile.methodRef(RUNTIME, "operand", "(" + OBJECT + "Ljava/lang/String;II)D"));
+            }
+            method.op(DNEG);
+        }
+        else if (expr instanceof Expr.Grouping) {
+            compileNumber(((Expr.Grouping)expr).expression);
+        }
+        else {
+            method.op(LDC2_W, classFile.doubleConstant((double)((Expr.Literal)expr).value));
+        }
+        depth --;
+    }
+
+    /**
+     * Leaves both operands on the stack as doubles. Operands that are not numeric are evaluated as Objects
+     * and only unboxed (and checked) once BOTH sides are evaluated, the same order as in the Interpreter.
+     */
+    private void compileNumberOperands(Expr.Binary expr) {
+        boolean leftNumeric = Resolver.isNumeric(expr.left);
+        boolean rightNumeric = Resolver.isNumeric(expr.right);
+        int numberRef = classFile.methodRef(RUNTIME, "number", "(" + OBJECT + "Ljava/lang/String;II)D");
+
+        if (leftNumeric && rightNumeric) {
+            compileNumber(expr.left);
+            compileNumber(expr.right);
+        }
+        else if (leftNumeric) {
+            compileNumber(expr.left);
+            compileObject(expr.right);
+            pushToken(expr.operator);
+            method.op(INVOKESTATIC, numberRef);
+        }
+        else if (rightNumeric) {
+            compileObject(expr.left);
+            compileNumber(expr.right);
+            int temp = allocateTemp();
+            method.local(DSTORE, temp);
+            pushToken(expr.operator);
+            method.op(INVOKESTATIC, numberRef);
+            method.local(DLOAD, temp);
+            freeTemp();
+        }
+        else {
+            compileObject(expr.left);
+            compileObject(expr.right);
+            int temp = allocateTemp();
+            method.local(ASTORE, temp);
+            pushToken(expr.operator);
+            method.op(INVOKESTATIC, numberRef);
+            method.local(ALOAD, temp);
+            pushToken(expr.operator);
+            method.op(INVOKESTATIC, numberRef);
+            freeTemp();
+        }
+    }
+
+    private static boolean isComparison(Expr expr) {
+        if (!(expr instanceof Expr.Binary)) {
+            return false;
+        }
+        switch (((Expr.Binary)expr).operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compare the two doubles on the stack and jump to "isFalse" when the comparison does not hold.
+     * dcmpg/dcmpl are picked so that a NaN operand makes every comparison false, as in Java.
+     */
+    private void compareNumbers(Expr.Binary expr, Label isFalse) {
+        compileNumberOperands(expr);
+        switch (expr.operator.type) {
+            case GREATER: method.op(DCMPL); method.branch(IFLE, isFalse); break;
+            case GREATER_EQUAL: method.op(DCMPL); method.branch(IFLT, isFalse); break;
+            case LESS: method.op(DCMPG); method.branch(IFGE, isFalse); break;
+            case LESS_EQUAL: method.op(DCMPG); method.branch(IFGT, isFalse); break;
+        }
+    }
+
+    /**
+     * Jump to "isFalse" unless the condition is truthy. A comparison jumps on the doubles directly,
+     * so "while (i < n)" never boxes a Boolean.
+     */
+    private void compileCondition(Expr condition, Label isFalse) {
+        if (isComparison(condition)) {
+            depth ++;
+            if (depth > maxDepth) {
+                maxDepth = depth;
+            }
+            compareNumbers((Expr.Binary)condition, isFalse);
+            depth --;
+            return;
+        }
+        compileObject(condition);
+        method.op(INVOKESTATIC, classFile.methodRef(RUNTIME, "isTruthy", "(" + OBJECT + ")Z"));
+        method.branch(IFEQ, isFalse);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compileObject(expr.value);
+        if (expr.depth >= 0 && expr.fallback == null) {
+            method.op(DUP);
+            method.local(ASTORE, localSlot(expr.depth, expr.slot));
+            return null;
+        }
+        int temp = allocateTemp();
+        method.local(ASTORE, temp);
+        Label end = new Label();
+        if (expr.fallback != null) {
+            // The first of the local and its fallback slots that is defined, else the global
+            assignIfDefined(localSlot(expr.depth, expr.slot), temp, end);
+            for (int i = 0; i < expr.fallback.length; i += 2) {
+                assignIfDefined(localSlot(expr.fallback[i], expr.fallback[i + 1]), temp, end);
+            }
+        }
+        int slot = globalSlot(expr.name);
+        checkDefined(expr.name, slot);
+        pushGlobals();
+        method.pushInt(slot);
+        method.local(ALOAD, temp);
+        method.op(AASTORE);
+        method.place(end);
+        method.local(ALOAD, temp);
+        freeTemp();
+        return null;
+    }
+
+    private void assignIfDefined(int local, int temp, Label end) {
+        Label undefined = new Label();
+        method.local(ALOAD, local);
+        method.op(GETSTATIC, classFile.fieldRef(RUNTIME, "UNDEFINED", OBJECT));
+        method.branch(IF_ACMPEQ, undefined);
+        method.local(ALOAD, temp);
+        method.local(ASTORE, local);
+        method.branch(GOTO, end);
+        method.place(undefined);
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case PLUS:
+                // A numeric "+" never gets here, see compileObject()
+                compileObject(expr.left);
+                compileObject(expr.right);
+                pushToken(expr.operator);
+                method.op(INVOKESTATIC, classFile.methodRef(RUNTIME, "add",
+                        "(" + OBJECT + OBJECT + "Ljava/lang/String;II)" + OBJECT));
+                break;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL: {
+                Label isFalse = new Label();
+                Label end = new Label();
+                compareNumbers(expr, isFalse);
+                method.op(GETSTATIC, classFile.fieldRef("java/lang/Boolean", "TRUE", "Ljava/lang/Boolean;"));
+                method.branch(GOTO, end);
+                method.place(isFalse);
+                method.op(GETSTATIC, classFile.fieldRef("java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;"));
+                method.place(end);
+                break;
+            }
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                compileObject(expr.left);
+                compileObject(expr.right);
+                method.op(INVOKESTATIC, classFile.methodRef(RUNTIME, "isEqual", "(" + OBJECT + OBJECT + ")Z"));
+                boxBoolean(expr.operator.type == TokenType.BANG_EQUAL);
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compileObject(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            method.op(ACONST_NULL);
+        }
+        else if (expr.value instanceof Boolean) {
+            String name = (Boolean)expr.value ? "TRUE" : "FALSE";
+            method.op(GETSTATIC, classFile.fieldRef("java/lang/Boolean", name, "Ljava/lang/Boolean;"));
+        }
+        else if (expr.value instanceof String) {
+            // A CONSTANT_Utf8 holds at most 65535 bytes, and a char takes up to 3 of them
+            if (((String)expr.value).length() > 0xffff / 3) {
+                error("String literal is too long to compile to a JVM class.");
+            }
+            method.op(LDC_W, classFile.string((String)expr.value));
+        }
+        else {
+            // A boxed number is created the first time it is needed and kept in a static field
+            double value = (double)expr.value;
+            String field = numberFields.get(Double.doubleToRawLongBits(value));
+            if (field == null) {
+                field = "c" + numberFields.size();
+                numberFields.put(Double.doubleToRawLongBits(value), field);
+            }
+            int fieldRef = classFile.fieldRef(className, field, OBJECT);
+            Label cached = new Label();
+            method.op(GETSTATIC, fieldRef);
+            method.op(DUP);
+            method.branch(IFNONNULL, cached);
+            method.op(POP);
+            method.op(LDC2_W, classFile.doubleConstant(value));
+            method.op(INVOKESTATIC, classFile.methodRef("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;"));
+            method.op(DUP);
+            method.op(PUTSTATIC, fieldRef);
+            method.place(cached);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        Label end = new Label();
+        compileObject(expr.left);
+        method.op(DUP);
+        method.op(INVOKESTATIC, classFile.methodRef(RUNTIME, "isTruthy", "(" + OBJECT + ")Z"));
+        method.branch(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+        method.op(POP);
+        compileObject(expr.right);
+        method.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        // Unary minus is numeric and never gets here, see compileObject()
+        compileObject(expr.right);
+        method.op(INVOKESTATIC, classFile.methodRef(RUNTIME, "isTruthy", "(" + OBJECT + ")Z"));
+        boxBoolean(true);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth >= 0 && expr.fallback == null) {
+            method.local(ALOAD, localSlot(expr.depth, expr.slot));
+            return null;
+        }
+        Label end = new Label();
+        if (expr.fallback != null) {
+            // The first of the local and its fallback slots that is defined, else the global
+            method.local(ALOAD, localSlot(expr.depth, expr.slot));
+            for (int i = 0; i < expr.fallback.length; i += 2) {
+                jumpIfDefined(end);
+                method.local(ALOAD, localSlot(expr.fallback[i], expr.fallback[i + 1]));
+            }
+            jumpIfDefined(end);
+        }
+        int slot = globalSlot(expr.name);
+        checkDefined(expr.name, slot);
+        pushGlobals();
+        method.pushInt(slot);
+        method.op(AALOAD);
+        method.place(end);
+        return null;
+    }
+
+    /**
+     * Jumps to "end" with the value on the stack if it is defined, pops it otherwise
+     */
+    private void jumpIfDefined(Label end) {
+        method.op(DUP);
+        method.op(GETSTATIC, classFile.fieldRef(RUNTIME, "UNDEFINED", OBJECT));
+        method.branch(IF_ACMPNE, end);
+        method.op(POP);
+    }
+
+    // Statements
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        // A block without locals is not a scope for the Resolver either (see Resolver.visitBlockStmt())
+        if (stmt.locals == 0) {
+            for (Stmt statement : stmt.statements) {
+                statement.accept(this);
+            }
+            return null;
+        }
+        int base = localCount;
+        scopes.add(base);
+        localCount += stmt.locals;
+        useLocals(localCount);
+        // A declaration that did not run ("if (c) for (var i ...)") leaves UNDEFINED, like in the Interpreter.
+        // The verifier also rejects a read of a local that is not stored on every path.
+        for (int slot = 0; slot < stmt.locals; slot++) {
+            method.op(GETSTATIC, classFile.fieldRef(RUNTIME, "UNDEFINED", OBJECT));
+            method.local(ASTORE, localSlot(0, slot));
+        }
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        scopes.remove(scopes.size() - 1);
+        localCount = base;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compileObject(stmt.expression);
+        method.op(POP);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label elseBranch = new Label();
+        Label end = new Label();
+        compileCondition(stmt.condition, elseBranch);
+        stmt.thenBranch.accept(this);
+        method.branch(GOTO, end);
+        method.place(elseBranch);
+        if (stmt.elseBranch != null) {
+            stmt.elseBranch.accept(this);
+        }
+        method.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Loop loop = new Loop();
+        loops.add(loop);
+        Label start = new Label();
+        method.place(start);
+        compileCondition(stmt.condition, loop.breakLabel);
+        stmt.body.accept(this);
+        method.place(loop.continueLabel);
+        method.branch(GOTO, start);
+        method.place(loop.breakLabel);
+        loops.remove(loops.size() - 1);
+        return null;
+    }
+
+    /**
+     * Like the Interpreter, the for loop does not open a scope: the initializer's variable
+     * belongs to the enclosing block (or is a global).
+     */
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if (stmt.initializer != null) {
+            stmt.initializer.accept(this);
+        }
+        Loop loop = new Loop();
+        loops.add(loop);
+        Label start = new Label();
+        method.place(start);
+        if (stmt.condition != null) {
+            compileCondition(stmt.condition, loop.breakLabel);
+        }
+        stmt.body.accept(this);
+        method.place(loop.continueLabel);
+        if (stmt.increment != null) {
+            compileObject(stmt.increment);
+            method.op(POP);
+        }
+        method.branch(GOTO, start);
+        method.place(loop.breakLabel);
+        loops.remove(loops.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compileObject(stmt.expression);
+        method.op(INVOKESTATIC, classFile.methodRef(RUNTIME, "print", "(" + OBJECT + ")V"));
+        return null;
+    }
+
+    /**
+     * Outside a loop the Interpreter throws its preallocated BreakException (or ContinueException),
+     * which only Interpreter.interpret() catches: the program stops there, so here the part returns false
+     */
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        if (loops.isEmpty()) {
+            method.op(ICONST_0);
+            method.op(IRETURN);
+            return null;
+        }
+        method.branch(GOTO, loops.get(loops.size() - 1).breakLabel);
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        if (loops.isEmpty()) {
+            method.op(ICONST_0);
+            method.op(IRETURN);
+            return null;
+        }
+        method.branch(GOTO, loops.get(loops.size() - 1).continueLabel);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.slot >= 0) {
+            if (stmt.initializer != null) {
+                compileObject(stmt.initializer);
+            }
+            else {
+                method.op(ACONST_NULL);
+            }
+            method.local(ASTORE, localSlot(0, stmt.slot));
+            return null;
+        }
+        // Redefinition is allowed, see Environment.define()
+        pushGlobals();
+        method.pushInt(globalSlot(stmt.name));
+        if (stmt.initializer != null) {
+            compileObject(stmt.initializer);
+        }
+        else {
+            method.op(ACONST_NULL);
+        }
+        method.op(AASTORE);
+        return null;
+    }
+}
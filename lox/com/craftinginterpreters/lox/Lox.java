@@ -4,36 +4,111 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.Buffer;
-import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
 import java.util.List;
 
 public class Lox {
     private static Interpreter interpreter = null;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
-    private static String sourceCode = "";
+    private static SourceFile sourceFile = new SourceFile("");
     static boolean repl = false;
+    // --vm: compile to bytecode and run it on the VM instead of walking the tree with the Interpreter
+    static boolean useVm = false;
+    // --jvm: compile the script to a JVM class and run that
+    static boolean useJvm = false;
+    // --flat: encode the program in one int array (FlatAst) and walk that instead of the Expr/Stmt objects
+    static boolean useFlat = false;
+    // --emit <directory>: compile the script to a JVM class and save it there instead of running it
+    private static String emitDirectory = null;
+    // --cache <directory>: keep the resolved statements of the script there, see ScriptCache
+    private static String cacheDirectory = null;
+    private static String scriptPath = null;
+    // --stream: scan and parse the script while reading it, instead of reading it all first
+    static boolean stream = false;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
+        String script = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--vm")) {
+                useVm = true;
+            }
+            else if (arg.equals("--jvm")) {
+                useJvm = true;
+            }
+            else if (arg.equals("--flat")) {
+                useFlat = true;
+            }
+            else if (arg.equals("--stream")) {
+                stream = true;
+            }
+            else if (arg.equals("--line-buffered")) {
+                Output.lineBuffered = true;
+            }
+            else if (arg.equals("--emit") && i + 1 < args.length) {
+                emitDirectory = args[++i];
+            }
+            else if (arg.equals("--cache") && i + 1 < args.length) {
+                cacheDirectory = args[++i];
+            }
+            else if (script == null && !arg.startsWith("--")) {
+                script = arg;
+            }
+            else {
+                usage();
+            }
         }
-        else if (args.length == 1) {
-            repl = false;
-            runFile(args[0]);
+        // Saving a class, caching or streaming only makes sense for a script
+        if ((emitDirectory != null || cacheDirectory != null || stream) && script == null) {
+            usage();
         }
-        else {
-            repl = true;
-            runPrompt();
+        // The cache key is a hash of the whole source, which --stream never has in memory
+        if (cacheDirectory != null && stream) {
+            usage();
         }
+
+        // The finally is for a crash, so that the output comes before the stack trace
+        try {
+            if (script != null) {
+                repl = false;
+                scriptPath = script;
+                runFile(script);
+            }
+            else {
+                repl = true;
+                runPrompt();
+            }
+        } finally {
+            Output.flush();
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--vm | --jvm | --flat | --emit <directory>] [--cache <directory> | --stream] [--line-buffered] [script]");
+        // The limits of the class file format, the VM only stops past 16 million constants or globals (see Chunk)
+        System.out.println("  --jvm and --emit compile the script to one JVM class: it must have at most about 15000 distinct");
+        System.out.println("  numbers (or 30000 strings), and no single statement longer than 64KB of JVM code");
+        System.exit(64);
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        if (stream) {
+            runStream(Paths.get(path));
+        }
+        else if (cacheDirectory != null) {
+            runCached(SourceFile.map(Paths.get(path)));
+        }
+        else {
+            run(SourceFile.map(Paths.get(path)));
+        }
+        // System.exit() does not run the finally in main()
+        Output.flush();
 
         // If error then exit
         if (hadError) {
@@ -58,9 +133,10 @@ public class Lox {
             if (line == null) {
                 break;
             }
-            run(line);
+            run(new SourceFile(line));
             // Reset hadError to prevent killing the REPL
             hadError = false;
+            Output.flush();
             System.out.print("> ");
         }
     }
@@ -69,16 +145,26 @@ public class Lox {
      Right now we only allow a single line of code in REPL as we use readLine()
      We need to switch to other reading methods if we want to allow very flexible REPL, such as detecting whether we should execute or simply move to next line when user clicks "Enter"
      */
-    private static void run(String source) {
-        sourceCode = source;
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+    private static void run(SourceFile source) {
+        sourceFile = source;
+        Scanner scanner = new Scanner(sourceFile);
+        TokenBuffer tokens = scanner.scanTokens();
         System.out.println("Tokenizer completes its running.");
 
-        Parser parser = new Parser(tokens, sourceCode);
-        interpreter = new Interpreter(sourceCode);
+        Parser parser = new Parser(tokens, sourceFile);
+        Optimizer optimizer = new Optimizer();
+        Resolver resolver = new Resolver();
+        interpreter = new Interpreter(sourceFile);
 
         if (!repl) {
+            if (useFlat) {
+                FlatAst program = encode(parser);
+                if (hadError) {
+                    return;
+                }
+                new FlatInterpreter(program).interpret();
+                return;
+            }
             List<Stmt> statements = parser.parse();
 
             if (hadError) {
@@ -86,12 +172,21 @@ public class Lox {
             }
             // System.out.println(new AstPrinter().print(expression));
 
-            interpreter.interpret(statements);
+            runStatements(statements);
 
         }
         else {
             // REPL mode
-            if (tokens.get(tokens.size() - 2).lexeme.equals(";")) {
+            if (tokens.type(tokens.size() - 2) == TokenType.SEMICOLON) {
+                if (useFlat) {
+                    FlatAst program = encode(parser);
+                    if (hadError) {
+                        return;
+                    }
+                    System.out.println("Parser completes its running.");
+                    new FlatInterpreter(program).interpret();
+                    return;
+                }
                 List<Stmt> statements = parser.parse();
 
                 if (hadError) {
@@ -99,7 +194,7 @@ public class Lox {
                 }
                 System.out.println("Parser completes its running.");
 
-                interpreter.interpret(statements);
+                runStatements(statements);
 
             }
             else {
@@ -110,7 +205,23 @@ public class Lox {
                 }
                 System.out.println("Parser completes its running.");
 
-                interpreter.interpret(expr);
+                expr = optimizer.optimize(expr);
+                resolver.resolve(expr);
+                if (useVm) {
+                    new VM().interpret(new BytecodeCompiler().compile(expr));
+                }
+                else if (useJvm) {
+                    byte[] bytes = new JvmCompiler("LoxScript").compile(expr);
+                    JvmCompiler.run("LoxScript", bytes);
+                }
+                else if (useFlat) {
+                    FlatEncoder encoder = new FlatEncoder();
+                    encoder.encode(expr);
+                    new FlatInterpreter(encoder.finish()).interpret();
+                }
+                else {
+                    interpreter.interpret(expr);
+                }
 
             }
         }
@@ -119,6 +230,148 @@ public class Lox {
         }
     }
 
+    /**
+     * The Scanner reads the file chunk by chunk, only as fast as the Parser consumes the tokens,
+     * so neither the whole text nor all of its tokens are ever in memory.
+     * SourceFile only maps the file if an error message needs one of its lines.
+     */
+    private static void runStream(Path path) throws IOException {
+        sourceFile = SourceFile.streamed(path);
+        interpreter = new Interpreter(sourceFile);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Scanner scanner = new Scanner(channel, sourceFile);
+            Parser parser = new Parser(scanner.streamTokens(), sourceFile);
+            // The same order as a script scanned up front: the scanning errors, the banner, then the parse errors
+            parser.deferErrors();
+            if (useFlat) {
+                FlatAst program = encode(parser);
+                System.out.println("Tokenizer completes its running.");
+                parser.reportDeferred();
+                if (hadError) {
+                    return;
+                }
+                new FlatInterpreter(program).interpret();
+                return;
+            }
+            List<Stmt> statements = parser.parse();
+            // Scanning ended with parsing
+            System.out.println("Tokenizer completes its running.");
+            parser.reportDeferred();
+
+            if (hadError) {
+                return;
+            }
+            runStatements(statements);
+        }
+    }
+
+    /**
+     * For --cache: on a hit the statements come from the .loxc file, already optimized and resolved,
+     * and the source is only read for its hash (and error messages). On a miss the script goes
+     * through the usual front end, and is saved only if that found no error.
+     */
+    private static void runCached(SourceFile source) {
+        sourceFile = source;
+        interpreter = new Interpreter(sourceFile);
+        ScriptCache cache = new ScriptCache(Paths.get(cacheDirectory), sourceFile);
+        List<Stmt> statements = cache.load();
+        if (statements == null) {
+            Scanner scanner = new Scanner(sourceFile);
+            Parser parser = new Parser(scanner.scanTokens(), sourceFile);
+            System.out.println("Tokenizer completes its running.");
+            statements = parser.parse();
+            if (hadError) {
+                return;
+            }
+            statements = new Optimizer().optimize(statements);
+            new Resolver().resolve(statements);
+            if (hadError) {
+                return;
+            }
+            cache.save(statements);
+        }
+        else {
+            // A hit prints what the front end prints too, --cache only changes how fast the script starts
+            System.out.println("Tokenizer completes its running.");
+        }
+        execute(statements);
+    }
+
+    /**
+     * For --flat: every top-level statement is optimized, resolved and encoded as soon as it is parsed,
+     * then its tree is garbage. The Resolver has no scope open between two top-level statements,
+     * so resolving them one by one is the same as resolving the list.
+     */
+    private static FlatAst encode(Parser parser) {
+        Optimizer optimizer = new Optimizer();
+        Resolver resolver = new Resolver();
+        FlatEncoder encoder = new FlatEncoder();
+        parser.parse(statement -> {
+            List<Stmt> statements = optimizer.optimize(Collections.singletonList(statement));
+            resolver.resolve(statements);
+            encoder.encode(statements);
+        });
+        return encoder.finish();
+    }
+
+    /**
+     * For Document.run(): statements parsed from source, run like those of a file on the selected engine
+     */
+    static void run(SourceFile source, List<Stmt> statements) {
+        sourceFile = source;
+        interpreter = new Interpreter(sourceFile);
+        runStatements(statements);
+        Output.flush();
+    }
+
+    private static void runStatements(List<Stmt> statements) {
+        statements = new Optimizer().optimize(statements);
+        new Resolver().resolve(statements);
+        execute(statements);
+    }
+
+    /**
+     * Run resolved statements on whichever engine was selected
+     */
+    private static void execute(List<Stmt> statements) {
+        if (emitDirectory != null || useJvm) {
+            String className = repl ? "LoxScript" : JvmCompiler.classNameFor(scriptPath);
+            byte[] bytes = new JvmCompiler(className).compile(statements);
+            if (hadError) {
+                return;
+            }
+            if (emitDirectory != null) {
+                Path path = Paths.get(emitDirectory, className + ".class");
+                try {
+                    Files.write(path, bytes);
+                } catch (IOException e) {
+                    System.err.println("Cannot write " + path + ": " + e.getMessage());
+                    System.exit(74);
+                }
+                System.out.println("Wrote " + path);
+                return;
+            }
+            JvmCompiler.run(className, bytes);
+        }
+        else if (useVm) {
+            Chunk chunk = new BytecodeCompiler().compile(statements);
+            // The compiler can only fail on limits (too many constants etc.)
+            if (hadError) {
+                return;
+            }
+            new VM().interpret(chunk);
+        }
+        else if (useFlat) {
+            // Only for --cache, --flat otherwise encodes while parsing (see encode())
+            FlatEncoder encoder = new FlatEncoder();
+            encoder.encode(statements);
+            new FlatInterpreter(encoder.finish()).interpret();
+        }
+        else {
+            interpreter.interpret(statements);
+        }
+    }
+
     static void error(int lineNumber, int column, String line, String message) {
         report(lineNumber, column, line, "", message);
     }
@@ -139,7 +392,8 @@ public class Lox {
      * interpret() in the Interpreter class catches a RuntimeError, but we deal it in the Lox class
      */
     static void runtimeError(RuntimeError err) {
-        String line = sourceCode.split("\n")[err.token.line];
+        Output.flush();
+        String line = sourceFile.line(err.token.line);
         // System.err.println(err.getMessage());
         System.err.println("[line " + err.token.line + "]");
         System.err.println("[column " + err.token.column + "]");
@@ -148,6 +402,7 @@ public class Lox {
     }
 
     private static void report(int lineNumber, int column, String line, String where, String message) {
+        Output.flush();
         System.err.println(
                 "[line " + lineNumber + "] Error" + where + ": " + message
         );
@@ -0,0 +1,62 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * The instruction set of the bytecode VM (see BytecodeCompiler and VM).
+ * Every instruction is one byte, some are followed by operands (big endian), 2 bytes unless noted:
+ *  - CONSTANT:                                 index into the constant pool
+ *  - GET/SET/DEFINE_LOCAL:                     index into the VM's local slots
+ *  - GET/SET/DEFINE_GLOBAL:                    index into the VM's global slots
+ *  - CONSTANT_WIDE, GET/SET/DEFINE_GLOBAL_WIDE: the same with a 3-byte index, once a big script needs it
+ *  - JUMP, JUMP_IF_FALSE, JUMP_IF_TRUE:        forward offset from the end of the instruction, 4 bytes
+ *  - LOOP:                                     backward offset from the end of the instruction, 4 bytes
+ *  - UNDEFINE_LOCALS:                          first local slot, then the number of slots
+ *  - GET/SET_LOCAL_OR:                         local slot, global slot (3 bytes), the number n of fallback
+ *                                              local slots, then those n slots (see Resolver.fallback())
+ * The comment after each opcode is its effect on the stack.
+ */
+final class OpCode {
+    static final byte CONSTANT = 0;         // -> value
+    static final byte NIL = 1;              // -> nil
+    static final byte TRUE = 2;             // -> true
+    static final byte FALSE = 3;            // -> false
+    static final byte POP = 4;              // value ->
+
+    static final byte GET_LOCAL = 5;        // -> value
+    static final byte SET_LOCAL = 6;        // value -> value (assignment is an expression)
+    static final byte DEFINE_LOCAL = 7;     // value ->
+    static final byte GET_GLOBAL = 8;       // -> value
+    static final byte SET_GLOBAL = 9;       // value -> value
+    static final byte DEFINE_GLOBAL = 10;   // value ->
+
+    static final byte EQUAL = 11;           // a b -> bool
+    static final byte NOT_EQUAL = 12;       // a b -> bool
+    static final byte GREATER = 13;         // a b -> bool
+    static final byte GREATER_EQUAL = 14;   // a b -> bool
+    static final byte LESS = 15;            // a b -> bool
+    static final byte LESS_EQUAL = 16;      // a b -> bool
+    static final byte ADD = 17;             // a b -> a + b
+    static final byte SUBTRACT = 18;        // a b -> a - b
+    static final byte MULTIPLY = 19;        // a b -> a * b
+    static final byte DIVIDE = 20;          // a b -> a / b
+    static final byte NOT = 21;             // a -> !a
+    static final byte NEGATE = 22;          // a -> -a
+
+    static final byte PRINT = 23;           // value ->
+    static final byte JUMP = 24;
+    static final byte JUMP_IF_FALSE = 25;   // does NOT pop the condition, "and"/"or" need it
+    static final byte JUMP_IF_TRUE = 26;    // does NOT pop the condition
+    static final byte LOOP = 27;
+    static final byte RETURN = 28;          // end of the chunk
+
+    // The locals of a block hold UNDEFINED until their declaration runs, which only some reads can see
+    static final byte UNDEFINE_LOCALS = 29;
+    static final byte GET_LOCAL_OR = 30;    // -> value, from the first defined slot, else from the global
+    static final byte SET_LOCAL_OR = 31;    // value -> value
+
+    static final byte CONSTANT_WIDE = 32;   // -> value
+    static final byte GET_GLOBAL_WIDE = 33; // -> value
+    static final byte SET_GLOBAL_WIDE = 34; // value -> value
+    static final byte DEFINE_GLOBAL_WIDE = 35;  // value ->
+
+    private OpCode() {}
+}
@@ -0,0 +1,302 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+/**
+ * The optimizer runs between the Parser and the Resolver and rewrites the tree bottom up:
+ *  - operators whose operands are all literals are evaluated once, here, instead of on every execution
+ *    ("1 + 2" -> 3, "!true" -> false, "a" + "b" -> "ab", "true or x" -> true);
+ *  - a few algebraic identities are simplified, only for operands that are known to be numbers (x * 1 -> x);
+ *  - Grouping nodes are dropped, they only matter to the Parser;
+ *  - if/while/for statements with a literal condition are pruned.
+ * Anything that would fail at runtime (-"a", 1 < "b"...) is left alone, so the RuntimeError still happens,
+ * with the same message and at the same moment.
+ */
+class Optimizer implements  Expr.Visitor<Expr>,
+                            Stmt.Visitor<Stmt> {
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            // The parser leaves a null behind for a declaration it could not parse
+            if (statement == null) {
+                optimized.add(null);
+                continue;
+            }
+            Stmt result = statement.accept(this);
+            // null means the statement was pruned
+            if (result != null) {
+                optimized.add(result);
+            }
+        }
+        return optimized;
+    }
+
+    // For REPL expression
+    Expr optimize(Expr expression) {
+        return expression.accept(this);
+    }
+
+    /**
+     * For a statement that is not in a list (a branch or a loop body) we cannot just drop it,
+     * so a pruned statement becomes an empty block
+     */
+    private Stmt optimize(Stmt stmt) {
+        if (stmt == null) {
+            return null;
+        }
+        Stmt result = stmt.accept(this);
+        if (result == null) {
+            return new Stmt.Block(new ArrayList<>());
+        }
+        return result;
+    }
+
+    private static boolean isLiteral(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object value(Expr expr) {
+        return ((Expr.Literal)expr).value;
+    }
+
+    private static boolean isNumber(Expr expr, double number) {
+        return isLiteral(expr) && value(expr) instanceof Double && (double)value(expr) == number;
+    }
+
+    /**
+     * Same rule as Resolver.isNumeric(), but the Resolver has not run yet, so we look at the operators
+     */
+    private static boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            return value(expr) instanceof Double;
+        }
+        else if (expr instanceof Expr.Unary) {
+            return ((Expr.Unary)expr).operator.type == MINUS;
+        }
+        else if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            switch (binary.operator.type) {
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    return true;
+                case PLUS:
+                    return isNumeric(binary.left) && isNumeric(binary.right);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        return new Expr.Assign(expr.name, expr.value.accept(this));
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = expr.left.accept(this);
+        Expr right = expr.right.accept(this);
+
+        if (isLiteral(left) && isLiteral(right)) {
+            Object folded = fold(expr.operator.type, value(left), value(right));
+            if (folded != null) {
+                return new Expr.Literal(folded);
+            }
+        }
+
+        // x * 1, 1 * x, x / 1 and x - 0 are x, as long as x is a number.
+        // x + 0 is NOT x: -0 + 0 is 0. x * 0 is not 0 either: NaN * 0 is NaN.
+        switch (expr.operator.type) {
+            case STAR:
+                if (isNumber(right, 1) && isNumeric(left)) return left;
+                if (isNumber(left, 1) && isNumeric(right)) return right;
+                break;
+            case SLASH:
+                if (isNumber(right, 1) && isNumeric(left)) return left;
+                break;
+            case MINUS:
+                if (isNumber(right, 0) && isNumeric(left)) return left;
+                break;
+        }
+
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    /**
+     * Evaluate a binary operator on two literal values exactly like the Interpreter does,
+     * returns null if it cannot be folded (it would throw a RuntimeError, or the result is nil)
+     */
+    private static Object fold(TokenType operator, Object left, Object right) {
+        if (operator == EQUAL_EQUAL) {
+            return Interpreter.isEqual(left, right);
+        }
+        if (operator == BANG_EQUAL) {
+            return !Interpreter.isEqual(left, right);
+        }
+        if (operator == PLUS) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left + (double)right;
+            }
+            // Challenge 7.2, p109; nil would make the Interpreter fail on toString()
+            if ((left instanceof String || right instanceof String) && left != null && right != null) {
+                return left.toString() + right.toString();
+            }
+            return null;
+        }
+        if (!(left instanceof Double) || !(right instanceof Double)) {
+            return null;
+        }
+        double a = (double)left;
+        double b = (double)right;
+        switch (operator) {
+            case MINUS: return a - b;
+            case STAR: return a * b;
+            case SLASH: return a / b;
+            case GREATER: return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS: return a < b;
+            case LESS_EQUAL: return a <= b;
+        }
+        return null;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        // The tree already encodes the precedence, the parentheses are no longer needed
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    /**
+     * A literal left side decides the short-circuit right away (see Interpreter.visitLogicalExpr()):
+     * either the left value is the result, or the result is the right side
+     */
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = expr.left.accept(this);
+        Expr right = expr.right.accept(this);
+        if (isLiteral(left)) {
+            boolean truthy = Interpreter.isTruthy(value(left));
+            if (expr.operator.type == OR) {
+                return truthy ? left : right;
+            }
+            else {
+                return truthy ? right : left;
+            }
+        }
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = expr.right.accept(this);
+        if (expr.operator.type == BANG && isLiteral(right)) {
+            return new Expr.Literal(!Interpreter.isTruthy(value(right)));
+        }
+        if (expr.operator.type == MINUS) {
+            if (isLiteral(right) && value(right) instanceof Double) {
+                return new Expr.Literal(-(double)value(right));
+            }
+            // -(-x) is x for a number
+            if (right instanceof Expr.Unary && ((Expr.Unary)right).operator.type == MINUS
+                    && isNumeric(((Expr.Unary)right).right)) {
+                return ((Expr.Unary)right).right;
+            }
+        }
+        if (right == expr.right) {
+            return expr;
+        }
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        return new Stmt.Block(optimize(stmt.statements));
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        return new Stmt.Expression(stmt.expression.accept(this));
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = stmt.condition.accept(this);
+        if (isLiteral(condition)) {
+            if (Interpreter.isTruthy(value(condition))) {
+                return optimize(stmt.thenBranch);
+            }
+            // Without an else branch there is nothing left at all
+            return stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        }
+        return new Stmt.If(condition, optimize(stmt.thenBranch), optimize(stmt.elseBranch));
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = stmt.condition.accept(this);
+        if (isLiteral(condition) && !Interpreter.isTruthy(value(condition))) {
+            return null;
+        }
+        return new Stmt.While(condition, optimize(stmt.body));
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt initializer = stmt.initializer == null ? null : stmt.initializer.accept(this);
+        Expr condition = stmt.condition == null ? null : stmt.condition.accept(this);
+        if (condition != null && isLiteral(condition)) {
+            if (!Interpreter.isTruthy(value(condition))) {
+                // Only the initializer ever runs. The for loop has no scope of its own,
+                // so a "var" initializer stays a declaration of the enclosing scope.
+                return initializer;
+            }
+            // Same as no condition at all
+            condition = null;
+        }
+        Expr increment = stmt.increment == null ? null : stmt.increment.accept(this);
+        return new Stmt.For(initializer, condition, increment, optimize(stmt.body));
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return new Stmt.Print(stmt.expression.accept(this));
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitContinueStmt(Stmt.Continue stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) {
+            return stmt;
+        }
+        return new Stmt.Var(stmt.name, stmt.initializer.accept(this));
+    }
+}
@@ -0,0 +1,127 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.charset.Charset;
+
+/**
+ * Where "print" writes to, for every engine (Interpreter, VM, compiled classes).
+ * System.out flushes on every println, which is one write() system call per printed line:
+ * a script that prints a lot spends its time in the kernel, not in Lox.
+ * Instead we collect the bytes in a big buffer and hand them to System.out in one piece when:
+ *  - the buffer is full;
+ *  - the program ends (Lox.runFile(), or the main() of a compiled class);
+ *  - the REPL shows its prompt;
+ *  - an error is reported, so that the output printed before the error comes before it;
+ *  - after every print with --line-buffered, for when somebody reads the output while the script runs.
+ * Anything else that writes to System.out directly must flush() first, or its text comes out too early.
+ */
+final class Output {
+    private static final int CAPACITY = 1 << 16;
+    private static final byte[] buffer = new byte[CAPACITY];
+    private static int length = 0;
+    private static final Charset charset = Charset.defaultCharset();
+
+    // --line-buffered: flush after every print instead of only when the buffer is full
+    static boolean lineBuffered = false;
+
+    private Output() {}
+
+    /**
+     * Same text as System.out.println(Interpreter.stringify(value))
+     */
+    static void print(Object value) {
+        if (value instanceof Double) {
+            writeNumber((double)value);
+        }
+        else if (value instanceof String) {
+            writeString((String)value);
+        }
+        else {
+            writeString(Interpreter.stringify(value));
+        }
+        write((byte)'\n');
+        if (lineBuffered) {
+            flush();
+        }
+    }
+
+    static void flush() {
+        if (length > 0) {
+            System.out.write(buffer, 0, length);
+            System.out.flush();
+            length = 0;
+        }
+    }
+
+    /**
+     * Integers below 10^7 are what scripts print most, and Double.toString() prints them as "123.0":
+     * we write their digits ourselves, anything else goes through stringify()
+     */
+    private static void writeNumber(double number) {
+        if (number != Math.rint(number) || Math.abs(number) >= 1e7) {
+            writeString(Interpreter.stringify(number));
+            return;
+        }
+        long integer = (long)number;
+        // -0.0 prints as "-0"
+        if (Double.doubleToRawLongBits(number) < 0) {
+            write((byte)'-');
+            integer = -integer;
+        }
+        if (length + 8 > CAPACITY) {
+            flush();
+        }
+        int digits = 1;
+        for (long rest = integer / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte)('0' + integer % 10);
+            integer /= 10;
+        }
+        length += digits;
+    }
+
+    private static void writeString(String text) {
+        int count = text.length();
+        // Plain ASCII is copied char by char, without encoding the String to a new byte array
+        if (count <= CAPACITY) {
+            if (length + count > CAPACITY) {
+                flush();
+            }
+            int start = length;
+            int i = 0;
+            while (i < count) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    break;
+                }
+                buffer[start + i] = (byte)c;
+                i++;
+            }
+            if (i == count) {
+                length += count;
+                return;
+            }
+        }
+        write(text.getBytes(charset));
+    }
+
+    private static void write(byte[] bytes) {
+        if (length + bytes.length > CAPACITY) {
+            flush();
+        }
+        if (bytes.length > CAPACITY) {
+            System.out.write(bytes, 0, bytes.length);
+            return;
+        }
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private static void write(byte b) {
+        if (length == CAPACITY) {
+            flush();
+        }
+        buffer[length++] = b;
+    }
+}
@@ -3,6 +3,9 @@ package com.craftinginterpreters.lox;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 import static com.craftinginterpreters.lox.TokenType.*;
 
 /*
@@ -54,26 +57,239 @@ import static com.craftinginterpreters.lox.TokenType.*;
     unary           -> ("!" | "-") unary ;
     unary           -> primary;
     primary         -> NUMBER | STRING | "true" | "false" | "nil" | "(" expression ") | IDENTIFIER";
+
+    logical_or to factor are all parsed by binary(), see PRECEDENCE.
 */
 public class Parser {
-    private final String source;
+    private final SourceFile sourceFile;
     private static class ParseError extends RuntimeException {}
-    private final List<Token> tokens;
+    // What a chunk Parser throws instead of reporting an error, see parseInParallel()
+    @SuppressWarnings("serial")
+    private static class ChunkError extends RuntimeException {}
+    // Tokens are indexes into the buffer, a Token object is only created by previous() and peek()
+    private final TokenBuffer tokens;
     private int current = 0;
+    // For a chunk Parser, the index of the token after its last statement, -1 otherwise
+    private final int end;
+
+    // Set by reparse(): the tree being built, and the tree of the tokens before the edit (null if none)
+    private SyntaxTree tree = null;
+    private SyntaxTree previousTree = null;
+    // Parse errors so far, to know if a statement or a block had one
+    private int errorCount = 0;
+    // The errors deferErrors() holds back, with their Tokens at the same index; null when they are reported at once
+    private List<Token> deferredTokens = null;
+    private final List<String> deferredMessages = new ArrayList<>();
+
+    // A big file is parsed in chunks of about that many tokens at the same time, see parseInParallel().
+    // Not final so that ParallelParseTest can cut small scripts in many chunks.
+    static int parallelChunk = 1 << 16;
+
+    // The precedence of each binary operator (by TokenType ordinal), higher binds tighter. 0 is not an operator.
+    private static final int[] PRECEDENCE = new int[TokenType.values().length];
+
+    static {
+        PRECEDENCE[OR.ordinal()] = 1;
+        PRECEDENCE[AND.ordinal()] = 2;
+        PRECEDENCE[BANG_EQUAL.ordinal()] = 3;
+        PRECEDENCE[EQUAL_EQUAL.ordinal()] = 3;
+        PRECEDENCE[LESS_EQUAL.ordinal()] = 4;
+        PRECEDENCE[LESS.ordinal()] = 4;
+        PRECEDENCE[GREATER_EQUAL.ordinal()] = 4;
+        PRECEDENCE[GREATER.ordinal()] = 4;
+        PRECEDENCE[PLUS.ordinal()] = 5;
+        PRECEDENCE[MINUS.ordinal()] = 5;
+        PRECEDENCE[STAR.ordinal()] = 6;
+        PRECEDENCE[SLASH.ordinal()] = 6;
+    }
+
+    Parser(TokenBuffer tokens, SourceFile sourceFile) {
+        this.sourceFile = sourceFile;
+        this.tokens = tokens;
+        this.end = -1;
+    }
 
-    Parser(List<Token> tokens, String source) {
-        this.source = source;
+    /**
+     * A Parser for the top-level statements in tokens [from, to)
+     */
+    private Parser(TokenBuffer tokens, SourceFile sourceFile, int from, int to) {
+        this.sourceFile = sourceFile;
         this.tokens = tokens;
+        this.current = from;
+        this.end = to;
     }
 
     List<Stmt> parse() {
+        if (tokens.complete() && tokens.size() >= 2 * parallelChunk && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            List<Stmt> statements = parseInParallel();
+            if (statements != null) {
+                return statements;
+            }
+        }
         List<Stmt> statements = new ArrayList<>();
+        parse(statements::add);
+        return statements;
+    }
+
+    /**
+     * Hand every top-level declaration (null if it could not be parsed) to consumer as soon as it is parsed,
+     * for Lox --flat, which does not keep the trees (see FlatEncoder)
+     */
+    void parse(Consumer<Stmt> consumer) {
         while (!isAtEnd()) {
-            statements.add(declaration());
+            consumer.accept(declaration());
+        }
+    }
+
+    /**
+     * Same as parse(), but the statements come with the tokens they were parsed from, for reparse()
+     */
+    SyntaxTree parseTree() {
+        return reparse(null);
+    }
+
+    /**
+     * Parse our tokens, which Scanner.relex() made out of previous.tokens after an edit,
+     * and take from previous every top-level statement and every block whose tokens relex() kept
+     * (see TokenBuffer.previousIndex()), instead of parsing them again: only the declarations the edit
+     * damaged are parsed, and in them, only the blocks it damaged.
+     * The trees taken are shared with previous. The Resolver writes into them, which is fine as long as
+     * each tree is resolved again before it runs, see Resolver.resolveLocal().
+     */
+    SyntaxTree reparse(SyntaxTree previous) {
+        tree = new SyntaxTree(tokens);
+        previousTree = previous != null && tokens.previous() == previous.tokens ? previous : null;
+        while (!isAtEnd()) {
+            int start = current;
+            if (!reuseStatement()) {
+                int errors = errorCount;
+                Stmt statement = declaration();
+                tree.addStatement(statement, start, errorCount == errors ? current : -1);
+            }
+        }
+        SyntaxTree result = tree;
+        tree = null;
+        previousTree = null;
+        return result;
+    }
+
+    /**
+     * If the statement of previousTree at the current token is still there, add it as it is and skip its tokens,
+     * and so on for the statements after it: after an edit, that is all the statements before it
+     * and often all the ones after it too, so they are added in one go.
+     * The token after a statement must still be there too: an "if" without an "else" looked at it.
+     */
+    private boolean reuseStatement() {
+        if (previousTree == null) {
+            return false;
+        }
+        int from = tokens.previousIndex(current, current + 1);
+        int first = from < 0 ? -1 : previousTree.statementAt(from);
+        int last = first;
+        // The statements follow each other, so from is where the first one starts
+        while (last >= 0 && last < previousTree.statementCount()) {
+            int to = previousTree.statementEnd(last);
+            if (to < 0 || tokens.previousIndex(current, current + to - from + 1) != from) {
+                break;
+            }
+            last++;
+        }
+        if (last <= first) {
+            return false;
+        }
+        tree.copyStatements(previousTree, first, last, current);
+        current += previousTree.statementEnd(last - 1) - from;
+        return true;
+    }
+
+    /**
+     * Split the top-level statements into chunks of about parallelChunk tokens, parse them on the ForkJoinPool,
+     * then put their statements one after the other. Top-level statements do not depend on each other
+     * for parsing, so this is the same list the serial parse() builds, as long as the chunks are cut
+     * where a statement ends (see chunkParsers()).
+     * Errors are a different story: after one, the serial parse() synchronizes, which can go over
+     * the end of a chunk. So a chunk Parser gives up at its first error, and so do we: null,
+     * and parse() starts over serially to report all the errors just like it always did.
+     */
+    private List<Stmt> parseInParallel() {
+        List<Parser> chunks = chunkParsers();
+        if (chunks == null) {
+            return null;
+        }
+        List<ForkJoinTask<List<Stmt>>> tasks = new ArrayList<>();
+        for (Parser chunk : chunks) {
+            tasks.add(ForkJoinTask.adapt(chunk::parseChunk));
+        }
+        ForkJoinTask.invokeAll(tasks);
+
+        List<Stmt> statements = new ArrayList<>();
+        for (ForkJoinTask<List<Stmt>> task : tasks) {
+            List<Stmt> chunkStatements = task.join();
+            if (chunkStatements == null) {
+                return null;
+            }
+            statements.addAll(chunkStatements);
         }
         return statements;
     }
 
+    /**
+     * One pass over the token types (far cheaper than parsing) that follows the nesting of
+     * parentheses and braces. Outside of them, a top-level statement ends with a ';' or a '}',
+     * unless an "else" follows (the end of a then branch). Those are where a chunk can end.
+     * null if the nesting goes below zero: the file has an error anyway.
+     */
+    private List<Parser> chunkParsers() {
+        List<Parser> chunks = new ArrayList<>();
+        // The last token is the EOF
+        int last = tokens.size() - 1;
+        int from = 0;
+        int depth = 0;
+        for (int i = 0; i < last; i++) {
+            switch (tokens.type(i)) {
+                case LEFT_PAREN:
+                case LEFT_BRACE:
+                    depth++;
+                    break;
+                case RIGHT_PAREN:
+                    depth--;
+                    break;
+                case RIGHT_BRACE:
+                case SEMICOLON:
+                    if (tokens.type(i) == RIGHT_BRACE) {
+                        depth--;
+                    }
+                    if (depth == 0 && tokens.type(i + 1) != ELSE
+                            && i + 1 - from >= parallelChunk && last - (i + 1) >= parallelChunk) {
+                        chunks.add(new Parser(tokens, sourceFile, from, i + 1));
+                        from = i + 1;
+                    }
+                    break;
+            }
+            if (depth < 0) {
+                return null;
+            }
+        }
+        chunks.add(new Parser(tokens, sourceFile, from, last));
+        return chunks;
+    }
+
+    /**
+     * The statements of a chunk, or null at the first error
+     */
+    private List<Stmt> parseChunk() {
+        List<Stmt> statements = new ArrayList<>();
+        try {
+            while (current < end) {
+                statements.add(declaration());
+            }
+        } catch (ChunkError error) {
+            return null;
+        }
+        // A statement that went over the end of the chunk, it was not cut where a statement ends
+        return current == end ? statements : null;
+    }
+
     Expr parseExpression() {
         try {
             // expression is top level
@@ -103,7 +319,7 @@ public class Parser {
             return printStatement();
         }
         else if (match(LEFT_BRACE)) {
-            return new Stmt.Block(block());
+            return blockStatement();
         }
         else if (match(IF)) {
             return ifStatement();
@@ -124,7 +340,8 @@ public class Parser {
     }
 
     private Stmt varDeclaration() {
-        Token name = consume(IDENTIFIER, "Expect a variable name.");
+        consume(IDENTIFIER, "Expect a variable name.");
+        Token name = previous();
         Expr initializer = null;
         if (match(EQUAL)) {
             initializer = expression();
@@ -189,7 +406,7 @@ public class Parser {
 
         // all components could be null (if all are null, it's a dead loop)
 
-        if (peek().type != SEMICOLON) {
+        if (peekType() != SEMICOLON) {
             if (match(VAR)) {
                 initializer = varDeclaration();
             }
@@ -201,12 +418,12 @@ public class Parser {
         consume(SEMICOLON, "Expect ';' after initializer.");
         }
 
-        if (peek().type != SEMICOLON) {
+        if (peekType() != SEMICOLON) {
             condition = expression();
         }
         consume(SEMICOLON, "Expect ';' after condition.");
 
-        if (peek().type != RIGHT_PAREN) {
+        if (peekType() != RIGHT_PAREN) {
             increment = expression();
         }
         consume(RIGHT_PAREN, "Expect ';' after condition.");
@@ -214,10 +431,10 @@ public class Parser {
 //        if (peek().type == SEMICOLON) {
 //            advance();
 //        }
-//        else if (peek().type != RIGHT_PAREN) {
+//        else if (peekType() != RIGHT_PAREN) {
 //            condition = expression();
 //            consume(SEMICOLON, "Expect ';' after condition.");
-//            if (peek().type != RIGHT_PAREN) {
+//            if (peekType() != RIGHT_PAREN) {
 //                increment = expression();
 //            }
 //        }
@@ -245,6 +462,48 @@ public class Parser {
         return new Stmt.Continue(null);
     }
 
+    /**
+     * The '{' was just matched. For reparse(), the block is recorded in the tree, or taken from previousTree.
+     */
+    private Stmt blockStatement() {
+        if (tree == null) {
+            return new Stmt.Block(block());
+        }
+        int start = current - 1;
+        Stmt.Block reused = reuseBlock(start);
+        if (reused != null) {
+            return reused;
+        }
+        int index = tree.startBlock(start);
+        int errors = errorCount;
+        Stmt.Block block = new Stmt.Block(block());
+        tree.endBlock(index, block, errorCount == errors ? current : -1);
+        return block;
+    }
+
+    /**
+     * The block of previousTree that starts at the '{' start, if it is still there: its tokens are skipped.
+     * Unlike a statement, what follows the '}' does not matter.
+     */
+    private Stmt.Block reuseBlock(int start) {
+        if (previousTree == null) {
+            return null;
+        }
+        int from = tokens.previousIndex(start, start + 1);
+        int index = from < 0 ? -1 : previousTree.blockAt(from);
+        if (index < 0) {
+            return null;
+        }
+        int to = previousTree.blockEnd(index);
+        if (tokens.previousIndex(start, start + to - from) != from) {
+            return null;
+        }
+        // The block itself and the blocks in it
+        tree.copyBlocks(previousTree, from, to, start);
+        current = start + to - from;
+        return previousTree.block(index);
+    }
+
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
 
@@ -275,7 +534,7 @@ public class Parser {
     private Expr assignment() {
         // assignment      -> IDENTIFIER "=" assignment
         // assignment      -> logical_or
-        Expr expr = logical_or();
+        Expr expr = binary(PRECEDENCE[OR.ordinal()]);
 
         if (match(EQUAL)) {
             Token equals = previous();
@@ -304,83 +563,43 @@ public class Parser {
         return expr;
     }
 
-    private Expr logical_or() {
-        // logical_or      -> logical_and ("or" logical_and)*
-        Expr expr = logical_and();
-        while (match(OR)) {
-            Token operator = previous();
-            Expr right = logical_and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-        return expr;
-    }
-
-    private Expr logical_and() {
-        // logical_and     -> equality ("and" equality)*
-        Expr expr = equality();
-        while (match(AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-        return expr;
-    }
-
-    private Expr equality() {
-        // equality        -> comparison ("==" comparison)* ;
-        // equality        -> comparison ("!=" comparison)* ;
-        // ! Lox does NOT allow chained equalities (as Java, which evaluates 5 <= 6 == 6 as ERROR instead of true
-        Expr expr = comparison();
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
-    }
-
-    private Expr comparison() {
-        // comparison      -> term ("<=" term)* ;
-        // comparison      -> term ("<" term)* ;
-        // comparison      -> term (">=" term)* ;
-        // comparison      -> term (">" term)* ;
-        Expr expr = term();
-        while (match(LESS_EQUAL, LESS, GREATER_EQUAL, GREATER)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
-    }
-
-    private Expr term() {
-        // term            -> factor ("+" factor)* ;
-        // term            -> factor ("-" factor)* ;
-        Expr expr = factor();
-        while (match(PLUS, MINUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
-    }
-
-    private Expr factor() {
-        // factor          -> unary ("*" unary)* ;
-        // factor          -> unary ("/" unary)* ;
+    /**
+     * Every binary operator, from logical_or down to factor, in one loop ("precedence climbing")
+     * instead of one method per level of the grammar: each operator has a precedence (PRECEDENCE),
+     * and binary(n) parses the longest expression whose operators have a precedence of n at least.
+     * An operand is a unary(). Then, as long as the next token is an operator that binds enough:
+     *  - the operand becomes its left side;
+     *  - its right side is binary(precedence + 1), which stops at the next operator of the same precedence,
+     *    so "1 - 2 - 3" is (1 - 2) - 3, the same left-associative trees the descent chain builds.
+     * A primary expression no longer goes down six levels of calls before it is parsed.
+     */
+    private Expr binary(int minPrecedence) {
         Expr expr = unary();
-        while (match(STAR, SLASH)) {
+        for (;;) {
+            TokenType type = peekType();
+            int precedence = PRECEDENCE[type.ordinal()];
+            // 0 for anything that is not a binary operator, it always ends the expression
+            if (precedence < minPrecedence) {
+                return expr;
+            }
+            advance();
             Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+            Expr right = binary(precedence + 1);
+            if (type == OR || type == AND) {
+                expr = new Expr.Logical(expr, operator, right);
+            }
+            else {
+                expr = new Expr.Binary(expr, operator, right);
+            }
         }
-        return expr;
     }
 
     private Expr unary() {
         // unary           -> ("!" | "-") unary ;
         // unary           -> primary;
-        if (match(BANG, MINUS)) {
+        TokenType type = peekType();
+        if (type == BANG || type == MINUS) {
+            advance();
             Token operator = previous();
             Expr right = unary();
             return new Expr.Unary(operator, right);
@@ -392,45 +611,77 @@ public class Parser {
 
     private Expr primary() {
         // primary         -> NUMBER | STRING | "true" | "false" | "nil" | "(" expression ")";
-        if (match(FALSE)) {
-            return new Expr.Literal(false);
-        }
-        if (match(TRUE)) {
-            return new Expr.Literal(true);
-        }
-        if (match(NIL)) {
-            return new Expr.Literal(null);
-        }
-        if (match(NUMBER, STRING)) {
-            // ! Recall that match() advances the pointer
-            return new Expr.Literal(previous().literal);
-        }
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
-        }
-        if (match(IDENTIFIER)) {
-            return new Expr.Variable(previous());
+        switch (peekType()) {
+            case FALSE:
+                advance();
+                return new Expr.Literal(false);
+            case TRUE:
+                advance();
+                return new Expr.Literal(true);
+            case NIL:
+                advance();
+                return new Expr.Literal(null);
+            case NUMBER:
+            case STRING:
+                advance();
+                return new Expr.Literal(tokens.literal(current - 1));
+            case LEFT_PAREN: {
+                advance();
+                Expr expr = expression();
+                consume(RIGHT_PAREN, "Expect ')' after expression.");
+                return new Expr.Grouping(expr);
+            }
+            case IDENTIFIER:
+                advance();
+                return new Expr.Variable(previous());
         }
         // If nothing matches then it's an error
         throw error(peek(), "Expect expression.");
     }
 
-    private Token consume(TokenType type, String message) {
-        Token t = tokens.get(current);
-        TokenType t_type = t.type;
-        if (t_type == type) {
-            return advance();
+    private void consume(TokenType type, String message) {
+        if (tokens.type(current) == type) {
+            advance();
+            return;
         }
         throw error(peek(), message);
     }
 
     private ParseError error(Token token, String message) {
+        errorCount++;
+        // A chunk Parser runs on another thread and does not report anything, see parseInParallel()
+        if (end >= 0) {
+            throw new ChunkError();
+        }
+        if (deferredTokens != null) {
+            deferredTokens.add(token);
+            deferredMessages.add(message);
+            return new ParseError();
+        }
+        report(token, message);
+        return new ParseError();
+    }
+
+    private void report(Token token, String message) {
         // Lox.error(token, message);
-        String line = source.split("\n")[token.line];
+        String line = sourceFile.line(token.line);
         Lox.error(token.line, token.column, line, message);
-        return new ParseError();
+    }
+
+    /**
+     * Hold the errors back until reportDeferred(). For --stream: its Scanner only gets to the end of the file
+     * along with the Parser, and the scanning errors of a script still come before its parse errors.
+     */
+    void deferErrors() {
+        deferredTokens = new ArrayList<>();
+    }
+
+    void reportDeferred() {
+        for (int i = 0; i < deferredTokens.size(); i++) {
+            report(deferredTokens.get(i), deferredMessages.get(i));
+        }
+        deferredTokens = null;
+        deferredMessages.clear();
     }
 
     private void synchronize() {
@@ -441,11 +692,11 @@ public class Parser {
         */
         advance();
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) {
+            if (tokens.type(current - 1) == SEMICOLON) {
                 return;
             }
 
-            switch(peek().type) {
+            switch(peekType()) {
                 // Valid statements
                 case CLASS:
                 case FOR:
@@ -457,17 +708,14 @@ public class Parser {
                 case WHILE:
                     return;
             }
+            advance();
         }
     }
 
-    private boolean match(TokenType... types) {
-        Token t = tokens.get(current);
-        TokenType t_type = t.type;
-        for (TokenType type : types) {
-            if (type == t_type) {
-                advance();
-                return true;
-            }
+    private boolean match(TokenType type) {
+        if (tokens.type(current) == type) {
+            advance();
+            return true;
         }
         return false;
     }
@@ -476,27 +724,30 @@ public class Parser {
         if (isAtEnd()) {
             return false;
         }
-        return peek().type == type;
+        return peekType() == type;
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) {
             current ++;
         }
-        return previous();
     }
 
     private boolean isAtEnd() {
-        // I'm using a slightly different index from the one used in the book,
-        // thus I need to subtract size() by 1, otherwise it causes issues with EOF
-        return current >= tokens.size() - 1;
+        // EOF is always the last token. We cannot compare with tokens.size():
+        // a streaming Scanner has not scanned the whole file yet
+        return peekType() == EOF;
+    }
+
+    private TokenType peekType() {
+        return tokens.type(current);
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 }
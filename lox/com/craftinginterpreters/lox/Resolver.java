@@ -0,0 +1,367 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+/**
+ * The resolver runs once between the Parser and the Interpreter.
+ * It walks the tree with the same scoping rules the Interpreter uses at runtime
+ * and writes down, for every Expr.Variable and Expr.Assign, where the variable lives:
+ *  - depth: how many environments we need to hop up from the current one
+ *  - slot: the index of the variable inside that environment
+ * A reference that cannot be found in any local scope is a global one (depth stays -1),
+ * and the Interpreter looks it up by name, so that the REPL-style redefinition still works.
+ * A block can declare a name on some paths only: "if (c) for (var i ...)" declares i into the enclosing block.
+ * Until such a declaration runs, its slot holds UNDEFINED, and a read (or an assignment) goes where the name-based
+ * lookup used to go: the same name in the enclosing blocks, then the global, else "Undefined variable".
+ * The Resolver gives only those reads a fallback (see fallback()): every other local is defined when it is read.
+ * While it is walking the tree anyway, it also marks the Binary and Unary nodes that always produce a number,
+ * so that the Interpreter can evaluate them with primitive doubles (see Interpreter.evaluateNumber()).
+ */
+class Resolver implements   Expr.Visitor<Void>,
+                            Stmt.Visitor<Void> {
+    /**
+     * One map per block that is being resolved, innermost last.
+     * Each map goes from a variable name to its slot in that block's environment.
+     * The global scope is NOT in the list.
+     */
+    private final List<Map<String, Integer>> scopes = new ArrayList<>();
+    // For each scope, the names that so far have only been declared on some paths
+    private final List<Set<String>> undefined = new ArrayList<>();
+    // How many if branches and loop bodies we are in, and how many we were in when each scope began
+    private int branches = 0;
+    private final List<Integer> scopeBranches = new ArrayList<>();
+
+    void resolve(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            resolve(statement);
+        }
+    }
+
+    // For REPL expression
+    void resolve(Expr expression) {
+        expression.accept(this);
+    }
+
+    private void resolve(Stmt stmt) {
+        // The parser leaves a null behind for a declaration it could not parse
+        if (stmt != null) {
+            stmt.accept(this);
+        }
+    }
+
+    private void beginScope() {
+        scopes.add(new HashMap<>());
+        undefined.add(new HashSet<>());
+        scopeBranches.add(branches);
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+        undefined.remove(undefined.size() - 1);
+        scopeBranches.remove(scopeBranches.size() - 1);
+    }
+
+    /**
+     * Redefining a variable in the same scope is allowed (see Environment.define()),
+     * so the second declaration simply reuses the slot of the first one.
+     * Returns -1 for a global declaration.
+     */
+    private int declare(Token name) {
+        if (scopes.isEmpty()) {
+            return -1;
+        }
+        int top = scopes.size() - 1;
+        Map<String, Integer> scope = scopes.get(top);
+        Integer slot = scope.get(name.lexeme);
+        boolean always = branches == scopeBranches.get(top);
+        if (slot == null) {
+            slot = scope.size();
+            scope.put(name.lexeme, slot);
+            if (!always) {
+                undefined.get(top).add(name.lexeme);
+            }
+        }
+        if (always) {
+            undefined.get(top).remove(name.lexeme);
+        }
+        return slot;
+    }
+
+    /**
+     * Search from the innermost scope outwards, exactly like Environment.get() does at runtime.
+     * Not found means global. The node may have been resolved before, in a tree Parser.reparse() reused,
+     * so it gets the defaults back: no slot, no fallback, and no global binding cached by another Interpreter.
+     */
+    private void resolveLocal(Token name, Expr expr) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer slot = scopes.get(i).get(name.lexeme);
+            if (slot != null) {
+                int depth = scopes.size() - 1 - i;
+                int[] fallback = undefined.get(i).contains(name.lexeme) ? fallback(name.lexeme, i) : null;
+                if (expr instanceof Expr.Variable) {
+                    ((Expr.Variable)expr).depth = depth;
+                    ((Expr.Variable)expr).slot = slot;
+                    ((Expr.Variable)expr).fallback = fallback;
+                }
+                else {
+                    ((Expr.Assign)expr).depth = depth;
+                    ((Expr.Assign)expr).slot = slot;
+                    ((Expr.Assign)expr).fallback = fallback;
+                }
+                return;
+            }
+        }
+        if (expr instanceof Expr.Variable) {
+            ((Expr.Variable)expr).depth = -1;
+            ((Expr.Variable)expr).slot = -1;
+            ((Expr.Variable)expr).fallback = null;
+            ((Expr.Variable)expr).global = null;
+        }
+        else {
+            ((Expr.Assign)expr).depth = -1;
+            ((Expr.Assign)expr).slot = -1;
+            ((Expr.Assign)expr).fallback = null;
+            ((Expr.Assign)expr).global = null;
+        }
+    }
+
+    /**
+     * Where the name-based lookup went when the declaration in scopes[scope] had not run:
+     * the same name in the enclosing scopes, outwards, as (depth, slot) pairs. It stops at the first scope
+     * where the name is always defined by now, past the last pair the engines try the global.
+     */
+    private int[] fallback(String name, int scope) {
+        List<Integer> pairs = new ArrayList<>();
+        for (int i = scope - 1; i >= 0; i--) {
+            Integer slot = scopes.get(i).get(name);
+            if (slot != null) {
+                pairs.add(scopes.size() - 1 - i);
+                pairs.add(slot);
+                if (!undefined.get(i).contains(name)) {
+                    break;
+                }
+            }
+        }
+        int[] fallback = new int[pairs.size()];
+        for (int i = 0; i < fallback.length; i++) {
+            fallback[i] = pairs.get(i);
+        }
+        return fallback;
+    }
+
+    /**
+     * A block that declares nothing does not get an environment at runtime (locals stays 0),
+     * so it must not count as a scope here either, otherwise every depth below it would be off by one
+     */
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (!declaresVariables(stmt.statements)) {
+            resolve(stmt.statements);
+            return null;
+        }
+        beginScope();
+        resolve(stmt.statements);
+        // The Interpreter sizes the block's environment with this
+        stmt.locals = scopes.get(scopes.size() - 1).size();
+        endScope();
+        return null;
+    }
+
+    /**
+     * A nested block gets its own scope, but a declaration can also hide under an if, a while or a for
+     * without braces: "if (c) for (var i ...)" declares i in the enclosing block.
+     */
+    private boolean declaresVariables(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (declaresVariable(statement)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean declaresVariable(Stmt stmt) {
+        if (stmt instanceof Stmt.Var) {
+            return true;
+        }
+        if (stmt instanceof Stmt.If) {
+            return declaresVariable(((Stmt.If)stmt).thenBranch) || declaresVariable(((Stmt.If)stmt).elseBranch);
+        }
+        if (stmt instanceof Stmt.While) {
+            return declaresVariable(((Stmt.While)stmt).body);
+        }
+        if (stmt instanceof Stmt.For) {
+            return ((Stmt.For)stmt).initializer instanceof Stmt.Var || declaresVariable(((Stmt.For)stmt).body);
+        }
+        return false;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        // Resolve the initializer BEFORE declaring the name:
+        // in "var a = a;" the RHS refers to the outer a, as the Interpreter evaluates it before define()
+        if (stmt.initializer != null) {
+            stmt.initializer.accept(this);
+        }
+        stmt.slot = declare(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        stmt.condition.accept(this);
+        branches ++;
+        resolve(stmt.thenBranch);
+        resolve(stmt.elseBranch);
+        branches --;
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        stmt.condition.accept(this);
+        branches ++;
+        resolve(stmt.body);
+        branches --;
+        return null;
+    }
+
+    /**
+     * The Interpreter does NOT create an environment for the for loop itself,
+     * so the initializer declares its variable in the enclosing scope.
+     * The condition, the increment and the body only run after the initializer:
+     * its variable is defined in there even when the for itself only runs on some paths.
+     */
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        resolve(stmt.initializer);
+        String defined = null;
+        if (stmt.initializer instanceof Stmt.Var && !scopes.isEmpty()) {
+            String name = ((Stmt.Var)stmt.initializer).name.lexeme;
+            if (undefined.get(undefined.size() - 1).remove(name)) {
+                defined = name;
+            }
+        }
+        if (stmt.condition != null) {
+            stmt.condition.accept(this);
+        }
+        if (stmt.increment != null) {
+            stmt.increment.accept(this);
+        }
+        branches ++;
+        resolve(stmt.body);
+        branches --;
+        if (defined != null) {
+            undefined.get(undefined.size() - 1).add(defined);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        expr.value.accept(this);
+        resolveLocal(expr.name, expr);
+        return null;
+    }
+
+    /**
+     * "-", "*" and "/" either produce a number or throw a RuntimeError;
+     * "+" only does so when both sides are numeric, otherwise it may be a String concatenation
+     */
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        switch (expr.operator.type) {
+            case MINUS:
+            case STAR:
+            case SLASH:
+                expr.numeric = true;
+                break;
+            case PLUS:
+                expr.numeric = isNumeric(expr.left) && isNumeric(expr.right);
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        expr.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        expr.right.accept(this);
+        expr.numeric = expr.operator.type == MINUS;
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        resolveLocal(expr.name, expr);
+        return null;
+    }
+
+    /**
+     * Whether the expression is guaranteed to evaluate to a Double (or to fail with its own RuntimeError).
+     * Variables are never numeric, as they may hold anything at runtime.
+     */
+    static boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            return ((Expr.Literal)expr).value instanceof Double;
+        }
+        else if (expr instanceof Expr.Grouping) {
+            return isNumeric(((Expr.Grouping)expr).expression);
+        }
+        else if (expr instanceof Expr.Binary) {
+            return ((Expr.Binary)expr).numeric;
+        }
+        else if (expr instanceof Expr.Unary) {
+            return ((Expr.Unary)expr).numeric;
+        }
+        return false;
+    }
+}
@@ -1,16 +1,32 @@
 package com.craftinginterpreters.lox;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
+/**
+ * The Scanner reads the UTF-8 bytes of the source, not a decoded String: everything outside
+ * string literals and comments is ASCII, and ASCII is one byte per character in UTF-8.
+ * A non-ASCII character is several bytes, but it still counts as one column (see advance()).
+ */
 class Scanner {
-    private final String source;
-    private final String[] lines;
-    private final List<Token> tokens = new ArrayList<>();
+    private final SourceFile sourceFile;
+    // When streaming, only a window of the file: source[0] is at offset base of the file
+    private ByteBuffer source;
+    private int length;
+    private TokenBuffer tokens;
+    // Only for a streaming Scanner, see streamTokens()
+    private ReadableByteChannel channel = null;
+    private int base = 0;
+    private byte[] window = null;
+    private static final int CHUNK_SIZE = 1 << 16;
     private int start = 0;
     private int current = 0;
     private int line = 0;
@@ -21,50 +37,395 @@ class Scanner {
     private int startColumn = column;
     private char prevChar = '\0';
 
-    private static final Map<String, TokenType> keywords;
+    // A big source is split in chunks of about that many bytes that are scanned at the same time, see scanInParallel().
+    // Not final so that ParallelScanTest can cut small scripts in many chunks.
+    static int parallelChunk = 1 << 22;
+    // A chunk Scanner runs on another thread: it keeps its errors and its caller reports them, in order
+    private List<Diagnostic> diagnostics = null;
 
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",     AND);
-        keywords.put("class",   CLASS);
-        keywords.put("else",    ELSE);
-        keywords.put("false",   FALSE);
-        keywords.put("for",     FOR);
-        keywords.put("fun",     FUN);
-        keywords.put("if",      IF);
-        keywords.put("nil",     NIL);
-        keywords.put("or",      OR);
-        keywords.put("print",   PRINT);
-        keywords.put("return",  RETURN);
-        keywords.put("super",   SUPER);
-        keywords.put("this",    THIS);
-        keywords.put("true",    TRUE);
-        keywords.put("var",     VAR);
-        keywords.put("while",   WHILE);
-        keywords.put("break",   BREAK);
-        keywords.put("continue",   CONTINUE);
-    }
-
-    Scanner(String source) {
+    private static class Diagnostic {
+        final int line;
+        final int column;
+        final boolean showLine;
+        final String message;
+
+        Diagnostic(int line, int column, boolean showLine, String message) {
+            this.line = line;
+            this.column = column;
+            this.showLine = showLine;
+            this.message = message;
+        }
+    }
+
+    Scanner(SourceFile sourceFile) {
+        this.sourceFile = sourceFile;
+        this.source = sourceFile.bytes();
+        this.length = source.limit();
+    }
+
+    /**
+     * A Scanner for source[from, to), which starts right after a '\n' that ends line - 1
+     */
+    private Scanner(SourceFile sourceFile, ByteBuffer source, int from, int to, int line) {
+        this.sourceFile = sourceFile;
         this.source = source;
-        this.lines = source.split("\n");
+        this.length = to;
+        this.start = from;
+        this.current = from;
+        if (from > 0) {
+            // As if we just went through that '\n', see advance()
+            this.line = line - 1;
+            this.prevChar = '\n';
+        }
+        this.tokens = new TokenBuffer(source, (to - from) / 4);
+        this.diagnostics = new ArrayList<>();
+    }
+
+    /**
+     * A streaming Scanner reads the source from channel, one chunk at a time, as the Parser asks for tokens
+     */
+    Scanner(ReadableByteChannel channel, SourceFile sourceFile) {
+        this.sourceFile = sourceFile;
+        this.channel = channel;
+        this.window = new byte[CHUNK_SIZE];
+        this.source = ByteBuffer.wrap(window);
+        this.length = 0;
+        this.tokens = new TokenBuffer(this);
+    }
+
+    TokenBuffer scanTokens() {
+        if (length >= 2 * parallelChunk && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            return scanInParallel();
+        }
+        tokens = new TokenBuffer(source, length / 4);
+        scanChunk();
+        tokens.add(EOF, current, 0, line, column + 1);
+        return tokens;
+    }
+
+    private TokenBuffer scanChunk() {
+        while (!isAtEnd()) {
+            start = current;
+            scanToken();
+        }
+        return tokens;
     }
 
-    List<Token> scanTokens() {
+    /**
+     * Scan the source again after an edit, for an editor that keeps the tokens of the file it shows.
+     * previous are the tokens (scanned up front, not streamed) of the source before the edit,
+     * which replaced its bytes [offset, offset + removed) (this Scanner's source is after the edit,
+     * see SourceFile.edit()). Only the tokens around the edit are scanned, the others are moved:
+     *  - the tokens before the last one that starts before the edit are kept. Scanning a token looks at
+     *    one character after it at most, so they are what we would scan, and so is that last one;
+     *  - we scan from the start of that last token, with the line and column it had;
+     *  - as soon as we scan a token after the edit that starts where an old token started, we stop:
+     *    the Scanner is at the start of a token in both cases, with the same text ahead, so all the
+     *    tokens that follow are the old ones, just further by the size of the edit. Their lines move
+     *    by as many lines as the edit added, and the tokens left on the line of the edit move by as many
+     *    columns as this token did.
+     * Errors are reported for the text we scanned, the old ones were reported by the previous scan.
+     */
+    TokenBuffer relex(TokenBuffer previous, int offset, int removed) {
+        // The last token of previous is its EOF, at the end of the old source
+        int delta = length - previous.start(previous.size() - 1);
+        int editEnd = offset + removed + delta;
+        tokens = new TokenBuffer(source, previous.size() + 16, previous.symbolTable());
+
+        // Binary search of the first token that does not start before the edit
+        int low = 0;
+        int high = previous.size() - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (previous.start(middle) < offset) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        int restart = low - 1;
+        tokens.keep(previous, Math.max(restart, 0));
+        if (restart >= 0) {
+            tokens.appendMoved(previous, 0, restart, 0, 0, -1, 0);
+            // The state advance() was in just before the first character of the token
+            current = previous.start(restart);
+            prevChar = current > 0 ? (char)(source.get(current - 1) & 0xff) : '\0';
+            if (prevChar == '\n') {
+                line = previous.line(restart) - 1;
+            }
+            else {
+                line = previous.line(restart);
+                column = previous.column(restart) - 1;
+            }
+        }
+
+        int next = low;
         while (!isAtEnd()) {
             start = current;
+            int count = tokens.size();
             scanToken();
+            if (tokens.size() == count || start < editEnd) {
+                continue;
+            }
+            while (next < previous.size() && previous.start(next) < start - delta) {
+                next++;
+            }
+            if (next < previous.size() && previous.start(next) == start - delta) {
+                int lineDelta = tokens.line(count) - previous.line(next);
+                int columnDelta = tokens.column(count) - previous.column(next);
+                tokens.appendMoved(previous, next + 1, previous.size(), delta, lineDelta, previous.line(next), columnDelta);
+                // The token we just scanned is previous's token next, moved the same way
+                tokens.moved(next, count, lineDelta, previous.line(next), columnDelta);
+                return tokens;
+            }
         }
-        tokens.add(new Token(EOF, "", null, line, column + 1));
+        tokens.add(EOF, current, 0, line, column + 1);
         return tokens;
     }
 
+    /**
+     * Split the source at newlines into chunks of about parallelChunk bytes, scan them on the ForkJoinPool,
+     * then put their tokens one after the other. This is only correct because:
+     *  - no token goes over a newline outside of a string, and chunkScanners() never splits a string;
+     *  - every chunk knows its first line, so the lines and columns are the same as for one Scanner;
+     *  - the chunk Scanners defer their errors, that we report here in the order of the file.
+     */
+    private TokenBuffer scanInParallel() {
+        List<Scanner> chunks = chunkScanners();
+        List<ForkJoinTask<TokenBuffer>> tasks = new ArrayList<>();
+        int total = 1;
+        for (Scanner chunk : chunks) {
+            tasks.add(ForkJoinTask.adapt(chunk::scanChunk));
+        }
+        ForkJoinTask.invokeAll(tasks);
+
+        for (Scanner chunk : chunks) {
+            total += chunk.tokens.size();
+        }
+        tokens = new TokenBuffer(source, total);
+        for (Scanner chunk : chunks) {
+            tokens.append(chunk.tokens);
+            for (Diagnostic diagnostic : chunk.diagnostics) {
+                error(diagnostic.line, diagnostic.column, diagnostic.showLine, diagnostic.message);
+            }
+        }
+        // The last chunk ends the file
+        Scanner last = chunks.get(chunks.size() - 1);
+        tokens.add(EOF, last.current, 0, last.line, last.column + 1);
+        return tokens;
+    }
+
+    /**
+     * One pass that only follows strings and comments (far cheaper than scanning),
+     * to find newlines where a chunk can end, and to count the lines before them
+     */
+    private List<Scanner> chunkScanners() {
+        List<Scanner> chunks = new ArrayList<>();
+        int from = 0;
+        int fromLine = 0;
+        int lines = 0;
+        boolean inString = false;
+        for (int i = 0; i < length; i++) {
+            byte c = source.get(i);
+            if (c == '\n') {
+                lines++;
+                if (!inString && i + 1 - from >= parallelChunk && length - (i + 1) >= parallelChunk) {
+                    chunks.add(new Scanner(sourceFile, source, from, i + 1, fromLine));
+                    from = i + 1;
+                    fromLine = lines;
+                }
+            }
+            else if (c == '"') {
+                inString = !inString;
+            }
+            else if (c == '/' && !inString && i + 1 < length && source.get(i + 1) == '/') {
+                // Skip the comment, a '"' in it does not start a string. The '\n' is handled above.
+                while (i + 1 < length && source.get(i + 1) != '\n') {
+                    i++;
+                }
+            }
+        }
+        chunks.add(new Scanner(sourceFile, source, from, length, fromLine));
+        return chunks;
+    }
+
+    private void error(int line, int column, boolean showLine, String message) {
+        if (diagnostics != null) {
+            diagnostics.add(new Diagnostic(line, column, showLine, message));
+        }
+        else {
+            Lox.error(line, column, showLine ? sourceFile.line(line) : "", message);
+        }
+    }
+
+    /**
+     * Instead of scanning the whole file first, return the lookahead window that the Parser reads from:
+     * it calls scanUntil() whenever it needs a token that has not been scanned yet
+     */
+    TokenBuffer streamTokens() {
+        return tokens;
+    }
+
+    void scanUntil(int index) {
+        while (tokens.size() <= index) {
+            if (isAtEnd()) {
+                tokens.add(EOF, base + current, 0, line, column + 1);
+                return;
+            }
+            start = current;
+            scanToken();
+        }
+    }
+
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= length && !fill();
+    }
+
+    /**
+     * Read the next chunk of a streaming source. The text we still need is kept:
+     * the token being scanned (from start) and the last token, that the Parser may still slice.
+     * Returns false at the end of the file, or if we are not streaming at all.
+     */
+    private boolean fill() {
+        if (channel == null) {
+            return false;
+        }
+        // Move what we keep to the front of the window, there must be room for a whole chunk after it
+        int keep = Math.min(start, tokens.lastStart() - base);
+        int kept = length - keep;
+        byte[] previous = window;
+        if (kept + CHUNK_SIZE > window.length) {
+            window = new byte[Math.max(window.length * 2, kept + CHUNK_SIZE)];
+        }
+        System.arraycopy(previous, keep, window, 0, kept);
+        base += keep;
+        start -= keep;
+        current -= keep;
+        length = kept;
+        source = ByteBuffer.wrap(window);
+        tokens.text(source, base);
+
+        int count;
+        try {
+            do {
+                count = channel.read(ByteBuffer.wrap(window, length, window.length - length));
+            } while (count == 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (count < 0) {
+            channel = null;
+            return false;
+        }
+        length += count;
+        return true;
+    }
+
+    /*
+     * Whitespace, comments and identifiers are skipped 8 bytes at a time ("SIMD within a register"):
+     * we read a long, and find the bytes we must stop at with a few bit operations on the whole word.
+     * The buffers are big-endian, so the first byte is the most significant one,
+     * and the high bit of byte i is bit 63 - 8 * i.
+     * (The Vector API would do 32 or 64 bytes at a time, but it is still an incubator module.)
+     */
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW_BITS = 0x7f7f7f7f7f7f7f7fL;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final boolean[] IDENTIFIER_PART = new boolean[256];
+
+    static {
+        for (int c = 0; c < 128; c++) {
+            IDENTIFIER_PART[c] = c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+        }
+    }
+
+    /**
+     * The high bit of every byte of word that is 0, and nothing else
+     */
+    private static long zeroBytes(long word) {
+        return ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS);
+    }
+
+    /**
+     * The high bit of every byte of word that is c
+     */
+    private static long bytesEqual(long word, char c) {
+        return zeroBytes(word ^ (ONES * c));
+    }
+
+    /**
+     * Called after advance() consumed a whitespace character, skip the rest of the run
+     */
+    private void skipWhitespace() {
+        while (current + 8 <= length) {
+            long word = source.getLong(current);
+            long newlines = bytesEqual(word, '\n');
+            long blanks = newlines | bytesEqual(word, ' ') | bytesEqual(word, '\t') | bytesEqual(word, '\r');
+            long others = ~blanks & HIGH_BITS;
+            int count = others == 0 ? 8 : Long.numberOfLeadingZeros(others) >>> 3;
+            if (count > 0) {
+                advanceOver(count, newlines);
+            }
+            if (count < 8) {
+                return;
+            }
+        }
+        // The last bytes (of the file or of the window) one at a time
+        for (char c = peek(); c == ' ' || c == '\r' || c == '\t' || c == '\n'; c = peek()) {
+            advance();
+        }
+    }
+
+    /**
+     * Skip a comment up to its '\n'. A non-ASCII character needs advance() for its column,
+     * so we also stop at any byte with the high bit set and finish one character at a time.
+     */
+    private void skipComment() {
+        while (current + 8 <= length) {
+            long word = source.getLong(current);
+            long stops = (bytesEqual(word, '\n') | word) & HIGH_BITS;
+            int count = stops == 0 ? 8 : Long.numberOfLeadingZeros(stops) >>> 3;
+            if (count > 0) {
+                advanceOver(count, 0);
+            }
+            if (count < 8) {
+                break;
+            }
+        }
+        while (peek() != '\n' && !isAtEnd()) {
+            advance();
+        }
+    }
+
+    /**
+     * Same as calling advance() count times (count <= 8) over ASCII bytes. newlines has the high bit
+     * of the bytes that are '\n' (there may be bits for bytes after the count first ones, they are ignored).
+     * Like in advance(), a '\n' starts a new line at the character after it.
+     */
+    private void advanceOver(int count, long newlines) {
+        int end = current + count;
+        // Only the '\n' before the last byte: the one in the last byte counts for the next character
+        long inner = newlines & (-1L << (64 - 8 * (count - 1))) & HIGH_BITS;
+        if (count == 1) {
+            inner = 0;
+        }
+        int lines = Long.bitCount(inner) + (prevChar == '\n' ? 1 : 0);
+        if (lines == 0) {
+            column += count;
+        }
+        else {
+            // The first character of the last line we went into, column 1
+            int lineStart = inner != 0 ? current + ((63 - Long.numberOfTrailingZeros(inner)) >>> 3) + 1 : current;
+            line += lines;
+            column = end - lineStart;
+        }
+        prevChar = (char)(source.get(end - 1) & 0xff);
+        current = end;
     }
 
     private char advance() {
-        char currentChar = source.charAt(current++);
+        char currentChar = (char)(source.get(current++) & 0xff);
         if (prevChar == '\n') {
             line ++;
             // For convenience, we set first column as 1, not 0
@@ -73,13 +434,25 @@ class Scanner {
         else {
             column ++;
         }
+        // Columns count characters like a Java String does: the continuation bytes (10xxxxxx)
+        // of a UTF-8 character take no column, and a 4-byte character takes two (a surrogate pair)
+        if (currentChar >= 0x80) {
+            if (currentChar < 0xc0) {
+                column --;
+            }
+            else if (currentChar >= 0xf0) {
+                column ++;
+            }
+        }
         prevChar = currentChar;
         return currentChar;
     }
 
-    private void addToken(TokenType type, Object literal, int startLine, int startColumn) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, startLine, startColumn));
+    /**
+     * The token is source[start, current), its lexeme and literal are only extracted if the Parser asks for them
+     */
+    private void addToken(TokenType type, int startLine, int startColumn) {
+        tokens.add(type, base + start, current - start, startLine, startColumn);
     }
 
     private void scanToken() {
@@ -87,67 +460,67 @@ class Scanner {
         startColumn = column;
         startLine = line;
         switch (c) {
-            case '(': addToken(LEFT_PAREN, null, line, column); break;
-            case ')': addToken(RIGHT_PAREN, null, line, column); break;
-            case '{': addToken(LEFT_BRACE, null, line, column); break;
-            case '}': addToken(RIGHT_BRACE, null, line, column); break;
-            case ',': addToken(COMMA, null, line, column); break;
-            case '.': addToken(DOT, null, line, column); break;
-            case '-': addToken(MINUS, null, line, column); break;
-            case '+': addToken(PLUS, null, line, column); break;
-            case ';': addToken(SEMICOLON, null, line, column); break;
-            case '*': addToken(STAR, null, line, column); break;
+            case '(': addToken(LEFT_PAREN, line, column); break;
+            case ')': addToken(RIGHT_PAREN, line, column); break;
+            case '{': addToken(LEFT_BRACE, line, column); break;
+            case '}': addToken(RIGHT_BRACE, line, column); break;
+            case ',': addToken(COMMA, line, column); break;
+            case '.': addToken(DOT, line, column); break;
+            case '-': addToken(MINUS, line, column); break;
+            case '+': addToken(PLUS, line, column); break;
+            case ';': addToken(SEMICOLON, line, column); break;
+            case '*': addToken(STAR, line, column); break;
             case '!':
                 if (match('=')) {
-                    addToken(BANG_EQUAL, null, line, startColumn);
+                    addToken(BANG_EQUAL, line, startColumn);
                 }
                 else {
-                    addToken(BANG, null, line, startColumn);
+                    addToken(BANG, line, startColumn);
                 }
                 break;
             case '=':
                 if (match('=')) {
-                    addToken(EQUAL_EQUAL, null, line, startColumn);
+                    addToken(EQUAL_EQUAL, line, startColumn);
                 }
                 else {
-                    addToken(EQUAL, null, line, startColumn);
+                    addToken(EQUAL, line, startColumn);
                 }
                 break;
             case '<':
                 if (match('=')) {
-                    addToken(LESS_EQUAL, null, line, startColumn);
+                    addToken(LESS_EQUAL, line, startColumn);
                 }
                 else {
-                    addToken(LESS, null, line, startColumn);
+                    addToken(LESS, line, startColumn);
                 }
                 break;
             case '>':
                 if (match('=')) {
-                    addToken(GREATER_EQUAL, null, line, startColumn);
+                    addToken(GREATER_EQUAL, line, startColumn);
                 }
                 else {
-                    addToken(GREATER, null, line, startColumn);
+                    addToken(GREATER, line, startColumn);
                 }
                 break;
             case '/':
                 if (match('/')) {
                     // Single line comment, skip till next line
-                    while (peek() != '\n' && !isAtEnd()) {
-                        advance();
-                    }
+                    skipComment();
                 }
                 else {
-                    addToken(SLASH, null, line, startColumn);
+                    addToken(SLASH, line, startColumn);
                 }
                 break;
             case ' ':
             case '\r':
             case '\t':
                 // Skip all spaces
+                skipWhitespace();
                 break;
             case '\n':
                 // advance() already increments line
                 // line++;
+                skipWhitespace();
                 break;
             case '"': getString(); break;
             default:
@@ -159,7 +532,11 @@ class Scanner {
                     getIdentifier();
                 }
                 else {
-                    Lox.error(line, column, lines[line], "Unexpected character.");
+                    error(line, column, true, "Unexpected character.");
+                    // One error for a non-ASCII character, not one for each of its bytes
+                    while (peek() >= 0x80 && peek() < 0xc0) {
+                        advance();
+                    }
                 }
                 break;
         }
@@ -167,7 +544,7 @@ class Scanner {
 
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (source.get(current) != expected) return false;
         // Once true addToken() consumes two characters so need to advance to next char
         current ++;
         // set prevChar
@@ -179,7 +556,7 @@ class Scanner {
 
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return (char)(source.get(current) & 0xff);
     }
 
     private boolean isDigit(char c) {
@@ -196,16 +573,15 @@ class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, column, "", "Unterminated string.");
+            error(line, column, false, "Unterminated string.");
             return;
         }
 
         // Consume closing quote
         advance();
 
-        // Trim the quotes
-        String s = source.substring(start + 1, current - 1);
-        addToken(STRING, s, startLine, startColumn);
+        // TokenBuffer.literal() trims the quotes
+        addToken(STRING, startLine, startColumn);
     }
 
     private void getNumber() {
@@ -214,7 +590,7 @@ class Scanner {
             if (isDigit(peek())) advance();
             else if (peek() == '.') {
                 if (isFloat) {
-                    Lox.error(line, column, lines[line], "Multiple decimal points.");
+                    error(line, column, true, "Multiple decimal points.");
                     return;
                 }
                 else {
@@ -224,22 +600,89 @@ class Scanner {
             }
         }
 
-        String s = source.substring(start, current);
-        addToken(NUMBER, Double.parseDouble(s), startLine, startColumn);
+        // TokenBuffer.literal() parses the number
+        addToken(NUMBER, startLine, startColumn);
     }
 
     private void getIdentifier() {
+        // The tail of the identifier in one go, then one character at a time only at the end of a window
+        int end = current;
+        while (end < length && IDENTIFIER_PART[source.get(end) & 0xff]) {
+            end++;
+        }
+        if (end > current) {
+            advanceOver(end - current, 0);
+        }
         while (isAlpha(peek()) || isDigit(peek())) {
             advance();
         }
 
-        String s = source.substring(start, current);
-        TokenType t = keywords.get(s);
-        if (t == null) {
-            addToken(IDENTIFIER, null, startLine, startColumn);
+        TokenType type = identifierType();
+        if (type == IDENTIFIER) {
+            int symbol = tokens.symbolTable().intern(source, start, current - start);
+            tokens.add(IDENTIFIER, base + start, current - start, startLine, startColumn, symbol);
         }
         else {
-            addToken(t, null, startLine, startColumn);
+            addToken(type, startLine, startColumn);
+        }
+    }
+
+    /**
+     * Tell keywords from identifiers on the bytes of source[start, current), without creating a String:
+     * the first letter (and the second one, when several keywords share the first one) leaves
+     * at most one keyword the lexeme can be, then checkKeyword() compares the length and the rest
+     */
+    private TokenType identifierType() {
+        switch (source.get(start)) {
+            case 'a': return checkKeyword(1, "nd", AND);
+            case 'b': return checkKeyword(1, "reak", BREAK);
+            case 'c':
+                if (current - start > 1) {
+                    switch (source.get(start + 1)) {
+                        case 'l': return checkKeyword(2, "ass", CLASS);
+                        case 'o': return checkKeyword(2, "ntinue", CONTINUE);
+                    }
+                }
+                break;
+            case 'e': return checkKeyword(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.get(start + 1)) {
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'o': return checkKeyword(2, "r", FOR);
+                        case 'u': return checkKeyword(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f", IF);
+            case 'n': return checkKeyword(1, "il", NIL);
+            case 'o': return checkKeyword(1, "r", OR);
+            case 'p': return checkKeyword(1, "rint", PRINT);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's': return checkKeyword(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.get(start + 1)) {
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", VAR);
+            case 'w': return checkKeyword(1, "hile", WHILE);
+        }
+        return IDENTIFIER;
+    }
+
+    private TokenType checkKeyword(int begin, String rest, TokenType type) {
+        if (current - start != begin + rest.length()) {
+            return IDENTIFIER;
+        }
+        for (int i = 0; i < rest.length(); i++) {
+            if (source.get(start + begin + i) != rest.charAt(i)) {
+                return IDENTIFIER;
+            }
         }
+        return type;
     }
 }
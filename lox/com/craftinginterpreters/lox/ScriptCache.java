@@ -0,0 +1,556 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lox --cache <directory>: the optimized and resolved statements of a script, saved as a .loxc file
+ * named after the SHA-256 of VERSION and the source bytes. A script run again unchanged skips
+ * the Scanner, the Parser, the Optimizer and the Resolver, it only reads the trees back.
+ *
+ * A .loxc file is: the magic "LOXC", VERSION, the string table (every lexeme and string literal once),
+ * then the statements in prefix order, a tag byte per node followed by its fields.
+ * A Token is its type, line, column and the index of its lexeme, the only ones in a tree
+ * are names and operators, which have no literal. The fields the Resolver fills in are saved too,
+ * the ones the Interpreter fills in at runtime (type feedback, global bindings) start over.
+ * Symbols are not saved: the names of the string table are interned again into a fresh SymbolTable.
+ */
+class ScriptCache {
+    // Bump it whenever the Parser, the Optimizer, the Resolver or this format changes: old files are just missed
+    static final int VERSION = 2;
+
+    private static final int MAGIC = 0x4c4f5843;   // "LOXC"
+
+    // Node tags, 0 is a missing Stmt or Expr
+    private static final byte NONE = 0;
+    private static final byte BLOCK = 1;
+    private static final byte EXPRESSION = 2;
+    private static final byte IF = 3;
+    private static final byte WHILE = 4;
+    private static final byte FOR = 5;
+    private static final byte PRINT = 6;
+    private static final byte BREAK = 7;
+    private static final byte CONTINUE = 8;
+    private static final byte VAR = 9;
+    private static final byte ASSIGN = 10;
+    private static final byte BINARY = 11;
+    private static final byte GROUPING = 12;
+    private static final byte LITERAL = 13;
+    private static final byte LOGICAL = 14;
+    private static final byte UNARY = 15;
+    private static final byte VARIABLE = 16;
+
+    // Literal values
+    private static final byte NIL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final Path file;
+
+    ScriptCache(Path directory, SourceFile source) {
+        this.file = directory.resolve(key(source) + ".loxc");
+    }
+
+    /**
+     * The statements saved for this source, or null if there are none (or the file is not one we can read)
+     */
+    List<Stmt> load() {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            // Most of the time: no such file, the script was never run
+            return null;
+        }
+        try {
+            return new Reader(buffer).read();
+        } catch (RuntimeException e) {
+            // Truncated or corrupt: parse the script again, save() then replaces the file
+            return null;
+        }
+    }
+
+    /**
+     * Save the statements for the next run. A failure only costs the next run its cache hit.
+     * The file is written next to its final name and moved there, so a run started at the same time
+     * (cron, CI) never maps half a file.
+     */
+    void save(List<Stmt> statements) {
+        try {
+            byte[] bytes = new Writer().write(statements);
+            Files.createDirectories(file.getParent());
+            Path temporary = Files.createTempFile(file.getParent(), "lox", ".tmp");
+            try {
+                Files.write(temporary, bytes);
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot write " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * SHA-256 of VERSION and the source bytes, in hex. MessageDigest reads the mapped file directly.
+     */
+    private static String key(SourceFile source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+        digest.update(ByteBuffer.allocate(4).putInt(0, VERSION));
+        digest.update(source.bytes().duplicate());
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    private static class Writer implements  Expr.Visitor<Void>,
+                                            Stmt.Visitor<Void> {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final List<String> strings = new ArrayList<>();
+        private final Map<String, Integer> stringIndex = new HashMap<>();
+
+        /**
+         * The string table goes first, but is only known once all the nodes are written:
+         * the nodes go to their own buffer, the file is the header, the table and that buffer.
+         */
+        byte[] write(List<Stmt> statements) throws IOException {
+            out.writeInt(statements.size());
+            for (Stmt statement : statements) {
+                write(statement);
+            }
+            out.flush();
+
+            ByteArrayOutputStream file = new ByteArrayOutputStream(bytes.size() + 16 * strings.size());
+            DataOutputStream header = new DataOutputStream(file);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(strings.size());
+            for (String string : strings) {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                header.writeInt(utf8.length);
+                header.write(utf8);
+            }
+            header.flush();
+            bytes.writeTo(file);
+            return file.toByteArray();
+        }
+
+        private void write(Stmt stmt) {
+            if (stmt == null) {
+                tag(NONE);
+            }
+            else {
+                stmt.accept(this);
+            }
+        }
+
+        private void write(Expr expr) {
+            if (expr == null) {
+                tag(NONE);
+            }
+            else {
+                expr.accept(this);
+            }
+        }
+
+        /**
+         * The visitors cannot throw an IOException, and a ByteArrayOutputStream never does
+         */
+        private void tag(int tag) {
+            try {
+                out.writeByte(tag);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void integer(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void string(String string) {
+            Integer index = stringIndex.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.add(string);
+                stringIndex.put(string, index);
+            }
+            integer(index);
+        }
+
+        // The (depth, slot) pairs of a read the Resolver gave a fallback, -1 for none
+        private void fallback(int[] fallback) {
+            if (fallback == null) {
+                integer(-1);
+                return;
+            }
+            integer(fallback.length);
+            for (int value : fallback) {
+                integer(value);
+            }
+        }
+
+        private void token(Token token) {
+            tag(token.type.ordinal());
+            integer(token.line);
+            integer(token.column);
+            string(token.lexeme);
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            tag(BLOCK);
+            integer(stmt.locals);
+            integer(stmt.statements.size());
+            for (Stmt statement : stmt.statements) {
+                write(statement);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            tag(EXPRESSION);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            tag(IF);
+            write(stmt.condition);
+            write(stmt.thenBranch);
+            write(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            tag(WHILE);
+            write(stmt.condition);
+            write(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            tag(FOR);
+            write(stmt.initializer);
+            write(stmt.condition);
+            write(stmt.increment);
+            write(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            tag(PRINT);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitBreakStmt(Stmt.Break stmt) {
+            tag(BREAK);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitContinueStmt(Stmt.Continue stmt) {
+            tag(CONTINUE);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            tag(VAR);
+            token(stmt.name);
+            write(stmt.initializer);
+            integer(stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            tag(ASSIGN);
+            token(expr.name);
+            write(expr.value);
+            integer(expr.depth);
+            integer(expr.slot);
+            fallback(expr.fallback);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            tag(BINARY);
+            write(expr.left);
+            token(expr.operator);
+            write(expr.right);
+            tag(expr.numeric ? 1 : 0);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            tag(GROUPING);
+            write(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            tag(LITERAL);
+            Object value = expr.value;
+            if (value == null) {
+                tag(NIL);
+            }
+            else if (value instanceof Boolean) {
+                tag((Boolean)value ? TRUE : FALSE);
+            }
+            else if (value instanceof Double) {
+                tag(NUMBER);
+                try {
+                    out.writeDouble((Double)value);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            else {
+                tag(STRING);
+                string((String)value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            tag(LOGICAL);
+            write(expr.left);
+            token(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            tag(UNARY);
+            token(expr.operator);
+            write(expr.right);
+            tag(expr.numeric ? 1 : 0);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            tag(VARIABLE);
+            token(expr.name);
+            integer(expr.depth);
+            integer(expr.slot);
+            fallback(expr.fallback);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the nodes straight from the mapped file, the fields in the same order as the Writer
+     */
+    private static class Reader {
+        private final ByteBuffer buffer;
+        private String[] strings;
+        // The symbol of each string used as a name, -1 until it is first seen in an IDENTIFIER
+        private int[] symbols;
+        private final SymbolTable symbolTable = new SymbolTable();
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        List<Stmt> read() {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            strings = new String[buffer.getInt()];
+            symbols = new int[strings.length];
+            for (int i = 0; i < strings.length; i++) {
+                int length = buffer.getInt();
+                strings[i] = SourceFile.decode(buffer, buffer.position(), buffer.position() + length);
+                buffer.position(buffer.position() + length);
+                symbols[i] = -1;
+            }
+            int count = buffer.getInt();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(statement());
+            }
+            return statements;
+        }
+
+        private int[] fallback() {
+            int length = buffer.getInt();
+            if (length < 0) {
+                return null;
+            }
+            int[] fallback = new int[length];
+            for (int i = 0; i < length; i++) {
+                fallback[i] = buffer.getInt();
+            }
+            return fallback;
+        }
+
+        private Token token() {
+            TokenType type = TYPES[buffer.get()];
+            int line = buffer.getInt();
+            int column = buffer.getInt();
+            int index = buffer.getInt();
+            if (type != TokenType.IDENTIFIER) {
+                return new Token(type, strings[index], null, line, column);
+            }
+            if (symbols[index] == -1) {
+                symbols[index] = symbolTable.intern(strings[index]);
+            }
+            // Like the Scanner's tokens, the lexeme is the one String of the symbol
+            return new Token(type, strings[index], null, line, column, symbols[index]);
+        }
+
+        private Stmt statement() {
+            switch (buffer.get()) {
+                case NONE:
+                    return null;
+                case BLOCK: {
+                    int locals = buffer.getInt();
+                    int count = buffer.getInt();
+                    List<Stmt> statements = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        statements.add(statement());
+                    }
+                    Stmt.Block block = new Stmt.Block(statements);
+                    block.locals = locals;
+                    return block;
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(expression());
+                case IF: {
+                    Expr condition = expression();
+                    Stmt thenBranch = statement();
+                    return new Stmt.If(condition, thenBranch, statement());
+                }
+                case WHILE: {
+                    Expr condition = expression();
+                    return new Stmt.While(condition, statement());
+                }
+                case FOR: {
+                    Stmt initializer = statement();
+                    Expr condition = expression();
+                    Expr increment = expression();
+                    return new Stmt.For(initializer, condition, increment, statement());
+                }
+                case PRINT:
+                    return new Stmt.Print(expression());
+                case BREAK:
+                    return new Stmt.Break(expression());
+                case CONTINUE:
+                    return new Stmt.Continue(expression());
+                case VAR: {
+                    Token name = token();
+                    Stmt.Var var = new Stmt.Var(name, expression());
+                    var.slot = buffer.getInt();
+                    return var;
+                }
+                default:
+                    throw new IllegalStateException("Bad statement tag at " + (buffer.position() - 1));
+            }
+        }
+
+        private Expr expression() {
+            switch (buffer.get()) {
+                case NONE:
+                    return null;
+                case ASSIGN: {
+                    Token name = token();
+                    Expr.Assign assign = new Expr.Assign(name, expression());
+                    assign.depth = buffer.getInt();
+                    assign.slot = buffer.getInt();
+                    assign.fallback = fallback();
+                    return assign;
+                }
+                case BINARY: {
+                    Expr left = expression();
+                    Token operator = token();
+                    Expr.Binary binary = new Expr.Binary(left, operator, expression());
+                    binary.numeric = buffer.get() != 0;
+                    return binary;
+                }
+                case GROUPING:
+                    return new Expr.Grouping(expression());
+                case LITERAL:
+                    return new Expr.Literal(value());
+                case LOGICAL: {
+                    Expr left = expression();
+                    Token operator = token();
+                    return new Expr.Logical(left, operator, expression());
+                }
+                case UNARY: {
+                    Token operator = token();
+                    Expr.Unary unary = new Expr.Unary(operator, expression());
+                    unary.numeric = buffer.get() != 0;
+                    return unary;
+                }
+                case VARIABLE: {
+                    Expr.Variable variable = new Expr.Variable(token());
+                    variable.depth = buffer.getInt();
+                    variable.slot = buffer.getInt();
+                    variable.fallback = fallback();
+                    return variable;
+                }
+                default:
+                    throw new IllegalStateException("Bad expression tag at " + (buffer.position() - 1));
+            }
+        }
+
+        private Object value() {
+            switch (buffer.get()) {
+                case NIL: return null;
+                case FALSE: return false;
+                case TRUE: return true;
+                case NUMBER: return buffer.getDouble();
+                case STRING: return strings[buffer.getInt()];
+                default:
+                    throw new IllegalStateException("Bad literal at " + (buffer.position() - 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The source code of one run, shared by the Scanner, the Parser and Lox (for error messages).
+ * The source is kept as UTF-8 bytes, which is what the Scanner reads: a script file is memory-mapped
+ * (map()), so it is never copied nor decoded as a whole. Only the few strings we need (lexemes,
+ * string literals, lines for error messages) are decoded, see decode().
+ *
+ * Error messages print the line of the error. Splitting the whole source for every error
+ * makes a file with many errors quadratic, so instead we find where every line starts, once,
+ * and only when the first error needs it.
+ * Lines are numbered from 0 like Token.line, and a line does not include its '\n'.
+ * A streamed script (Lox --stream) is not kept in memory: the file is only mapped if there is an error.
+ */
+class SourceFile {
+    // null until needed for a streamed script
+    private ByteBuffer bytes;
+    private final Path path;
+    // lineStarts[i] is the offset of the first byte of line i, null until the first lookup
+    private int[] lineStarts = null;
+
+    SourceFile(String text) {
+        this.bytes = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        this.path = null;
+    }
+
+    private SourceFile(Path path, ByteBuffer bytes) {
+        this.bytes = bytes;
+        this.path = path;
+    }
+
+    static SourceFile map(Path path) throws IOException {
+        return new SourceFile(path, mapFile(path));
+    }
+
+    static SourceFile streamed(Path path) {
+        return new SourceFile(path, null);
+    }
+
+    private static ByteBuffer mapFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // A mapping (like an array) is indexed by an int
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too big, use --stream");
+            }
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    ByteBuffer bytes() {
+        if (bytes == null) {
+            try {
+                bytes = mapFile(path);
+            } catch (IOException e) {
+                // Only error messages need it, they will just not show the line
+                bytes = ByteBuffer.allocate(0);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * The source after replacing its bytes [offset, offset + removed) with text, for Scanner.relex()
+     */
+    SourceFile edit(int offset, int removed, String text) {
+        ByteBuffer bytes = bytes();
+        byte[] inserted = text.getBytes(StandardCharsets.UTF_8);
+        int after = bytes.limit() - offset - removed;
+        byte[] edited = new byte[offset + inserted.length + after];
+        bytes.get(0, edited, 0, offset);
+        System.arraycopy(inserted, 0, edited, offset, inserted.length);
+        bytes.get(offset + removed, edited, offset + inserted.length, after);
+        return new SourceFile(path, ByteBuffer.wrap(edited));
+    }
+
+    /**
+     * Decode bytes[start, end) as UTF-8
+     */
+    static String decode(ByteBuffer bytes, int start, int end) {
+        byte[] slice = new byte[end - start];
+        bytes.get(start, slice);
+        return new String(slice, StandardCharsets.UTF_8);
+    }
+
+    int lineCount() {
+        return lineStarts().length;
+    }
+
+    /**
+     * The text of a line, or "" if there is no such line (an error at the very end of the file)
+     */
+    String line(int number) {
+        int[] starts = lineStarts();
+        if (number < 0 || number >= starts.length) {
+            return "";
+        }
+        int end = number + 1 < starts.length ? starts[number + 1] - 1 : bytes.limit();
+        return decode(bytes, starts[number], end);
+    }
+
+    /**
+     * The line of the byte at offset, by binary search
+     */
+    int lineOf(int offset) {
+        int index = Arrays.binarySearch(lineStarts(), offset);
+        // Not a line start: binarySearch returns -(insertion point) - 1, the line is the one before
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private int[] lineStarts() {
+        if (lineStarts == null) {
+            ByteBuffer bytes = bytes();
+            int length = bytes.limit();
+            int[] starts = new int[16];
+            int count = 1;
+            for (int i = 0; i < length; i++) {
+                if (bytes.get(i) == '\n') {
+                    if (count == starts.length) {
+                        starts = Arrays.copyOf(starts, count * 2);
+                    }
+                    starts[count++] = i + 1;
+                }
+            }
+            lineStarts = Arrays.copyOf(starts, count);
+        }
+        return lineStarts;
+    }
+}
@@ -25,6 +25,7 @@ abstract class Stmt {
 		}
 
 		final List<Stmt> statements;
+		int locals = 0;
 	}
 	static class Expression extends Stmt {
 		Expression(Expr expression) {
@@ -135,6 +136,7 @@ abstract class Stmt {
 
 		final Token name;
 		final Expr initializer;
+		int slot = -1;
 	}
 
 	abstract <R> R accept(Visitor<R> visitor);
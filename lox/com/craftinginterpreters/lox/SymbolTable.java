@@ -0,0 +1,133 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Every distinct identifier of a run gets a symbol: a dense int id (0, 1, 2...) and ONE String for its name.
+ * The Scanner interns the bytes of each identifier here, so the same name used a thousand times
+ * is decoded once, and the Tokens created by the Parser all share that String.
+ * At runtime the globals are an array indexed by symbol (see Environment) instead of a HashMap on names.
+ */
+class SymbolTable {
+    private String[] names = new String[64];
+    private int[] hashes = new int[64];
+    private int count = 0;
+    // Open addressing: the symbol whose hash lands on each entry, or -1. Never more than half full.
+    private int[] table = new int[128];
+
+    SymbolTable() {
+        Arrays.fill(table, -1);
+    }
+
+    /**
+     * The symbol of the identifier bytes[start, start + length), a new one if the name was never seen
+     */
+    int intern(ByteBuffer bytes, int start, int length) {
+        int hash = hash(bytes, start, length);
+        int mask = table.length - 1;
+        int index = hash & mask;
+        for (;;) {
+            int symbol = table[index];
+            if (symbol == -1) {
+                break;
+            }
+            if (hashes[symbol] == hash && sameName(names[symbol], bytes, start, length)) {
+                return symbol;
+            }
+            index = (index + 1) & mask;
+        }
+        return add(SourceFile.decode(bytes, start, start + length), hash, index);
+    }
+
+    /**
+     * Same as intern() for a name we already have as a String (from the SymbolTable of another Scanner)
+     */
+    int intern(String name) {
+        int hash = hash(name);
+        int mask = table.length - 1;
+        int index = hash & mask;
+        for (;;) {
+            int symbol = table[index];
+            if (symbol == -1) {
+                break;
+            }
+            if (hashes[symbol] == hash && names[symbol].equals(name)) {
+                return symbol;
+            }
+            index = (index + 1) & mask;
+        }
+        return add(name, hash, index);
+    }
+
+    private int add(String name, int hash, int index) {
+        int symbol = count++;
+        if (symbol == names.length) {
+            names = Arrays.copyOf(names, symbol * 2);
+            hashes = Arrays.copyOf(hashes, symbol * 2);
+        }
+        names[symbol] = name;
+        hashes[symbol] = hash;
+        table[index] = symbol;
+        if (count * 2 > table.length) {
+            rehash();
+        }
+        return symbol;
+    }
+
+    String name(int symbol) {
+        return names[symbol];
+    }
+
+    int size() {
+        return count;
+    }
+
+    // FNV-1a
+    private static int hash(ByteBuffer bytes, int start, int length) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < start + length; i++) {
+            hash ^= bytes.get(i);
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    // The same hash as for the bytes, as a name is ASCII
+    private static int hash(String name) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * Identifiers are ASCII (see Scanner.isAlpha()), one byte per char
+     */
+    private static boolean sameName(String name, ByteBuffer bytes, int start, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != bytes.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        Arrays.fill(table, -1);
+        int mask = table.length - 1;
+        for (int symbol = 0; symbol < count; symbol++) {
+            int index = hashes[symbol] & mask;
+            while (table[index] != -1) {
+                index = (index + 1) & mask;
+            }
+            table[index] = symbol;
+        }
+    }
+}
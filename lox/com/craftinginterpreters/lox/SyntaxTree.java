@@ -0,0 +1,154 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The top-level statements of a file, as Parser.parseTree() or Parser.reparse() built them, with the tokens
+ * each statement and each block was parsed from. After an edit (see Scanner.relex()) Parser.reparse() uses
+ * these token ranges to find the trees it can take as they are, and only parses the rest again.
+ * A statement or a block that had a parse error gets no range: it is always parsed again,
+ * so that its errors are reported again.
+ */
+class SyntaxTree {
+    final TokenBuffer tokens;
+    final List<Stmt> statements = new ArrayList<>();
+
+    // statements.get(i) was parsed from the tokens [statementStarts[i], statementEnds[i]), the end is -1 after an error
+    private int[] statementStarts = new int[16];
+    private int[] statementEnds = new int[16];
+
+    // Every block, in the order of their '{': the index of the '{' and the index after the '}' (-1 after an error)
+    private Stmt.Block[] blocks = new Stmt.Block[16];
+    private int[] blockStarts = new int[16];
+    private int[] blockEnds = new int[16];
+    private int blockCount = 0;
+
+    SyntaxTree(TokenBuffer tokens) {
+        this.tokens = tokens;
+    }
+
+    void addStatement(Stmt statement, int start, int end) {
+        int index = statements.size();
+        if (index == statementStarts.length) {
+            statementStarts = Arrays.copyOf(statementStarts, index * 2);
+            statementEnds = Arrays.copyOf(statementEnds, index * 2);
+        }
+        statements.add(statement);
+        statementStarts[index] = start;
+        statementEnds[index] = end;
+    }
+
+    /**
+     * Add the statements [first, last) of previous, which were parsed from its tokens from on,
+     * with the blocks in them. Those tokens are ours from at on.
+     */
+    void copyStatements(SyntaxTree previous, int first, int last, int at) {
+        int count = statements.size();
+        int added = last - first;
+        if (count + added > statementStarts.length) {
+            statementStarts = Arrays.copyOf(statementStarts, Math.max(count + added, count * 2));
+            statementEnds = Arrays.copyOf(statementEnds, Math.max(count + added, count * 2));
+        }
+        statements.addAll(previous.statements.subList(first, last));
+        int shift = at - previous.statementStarts[first];
+        for (int i = 0; i < added; i++) {
+            statementStarts[count + i] = previous.statementStarts[first + i] + shift;
+            statementEnds[count + i] = previous.statementEnds[first + i] + shift;
+        }
+        copyBlocks(previous, previous.statementStarts[first], previous.statementEnds[last - 1], at);
+    }
+
+    /**
+     * Add a block when the Parser reaches its '{', to keep them in order: the Parser sets its end with endBlock()
+     */
+    int startBlock(int start) {
+        if (blockCount == blocks.length) {
+            blocks = Arrays.copyOf(blocks, blockCount * 2);
+            blockStarts = Arrays.copyOf(blockStarts, blockCount * 2);
+            blockEnds = Arrays.copyOf(blockEnds, blockCount * 2);
+        }
+        blockStarts[blockCount] = start;
+        blockEnds[blockCount] = -1;
+        return blockCount++;
+    }
+
+    void endBlock(int index, Stmt.Block block, int end) {
+        blocks[index] = block;
+        blockEnds[index] = end;
+    }
+
+    /**
+     * The blocks of previous inside its tokens [from, to), which are our tokens from at on
+     */
+    void copyBlocks(SyntaxTree previous, int from, int to, int at) {
+        for (int i = previous.firstBlock(from); i < previous.blockCount && previous.blockStarts[i] < to; i++) {
+            int index = startBlock(previous.blockStarts[i] - from + at);
+            int end = previous.blockEnds[i];
+            endBlock(index, previous.blocks[i], end < 0 ? -1 : end - from + at);
+        }
+    }
+
+    /**
+     * The index of the statement parsed from the tokens from start on without an error, -1 if none
+     */
+    int statementAt(int start) {
+        int index = Arrays.binarySearch(statementStarts, 0, statements.size(), start);
+        return index >= 0 && statementEnds[index] >= 0 ? index : -1;
+    }
+
+    int statementCount() {
+        return statements.size();
+    }
+
+    /**
+     * True if a statement had a parse error, then the statements must not run
+     */
+    boolean hadError() {
+        for (int i = 0; i < statements.size(); i++) {
+            if (statementEnds[i] < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int statementEnd(int index) {
+        return statementEnds[index];
+    }
+
+    /**
+     * The index of the block whose '{' is the token start and that had no error, -1 if none
+     */
+    int blockAt(int start) {
+        int index = firstBlock(start);
+        return index < blockCount && blockStarts[index] == start && blockEnds[index] >= 0 ? index : -1;
+    }
+
+    Stmt.Block block(int index) {
+        return blocks[index];
+    }
+
+    int blockEnd(int index) {
+        return blockEnds[index];
+    }
+
+    /**
+     * Binary search of the first block whose '{' is not before the token start
+     */
+    private int firstBlock(int start) {
+        int low = 0;
+        int high = blockCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (blockStarts[middle] < start) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,335 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The tokens of a source file, as parallel arrays instead of one Token object per token.
+ * A Token costs a lexeme String, a boxed literal and the object itself: millions of small objects
+ * for a big script, most of them only ever looked at for their type.
+ * Here a token is an index, and the lexeme and the literal are only sliced from the source on demand.
+ * The Parser creates Token objects (token()) just for the tokens that end up in the tree or in an error.
+ *
+ * A streaming Scanner (see Scanner.streamTokens()) uses the buffer as a small ring instead, the lookahead window:
+ * tokens are scanned when the Parser first asks for them, and only the last WINDOW tokens are kept.
+ * That is enough because the Parser never looks further back than previous().
+ */
+class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    static final int WINDOW = 16;
+
+    // Every power of ten up to 10^22 is exactly a double
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // The UTF-8 source the tokens are sliced from, source[0] is at offset base of the file
+    private ByteBuffer source;
+    private int base = 0;
+    // index & mask is where a token is stored: all bits for a plain buffer, WINDOW - 1 for a ring
+    private final int mask;
+    // Scans more tokens on demand, null when the whole file was scanned up front
+    private final Scanner scanner;
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    // line << 32 | column
+    private long[] positions;
+    // The symbol of an IDENTIFIER, see SymbolTable
+    private int[] symbols;
+    private final SymbolTable symbolTable;
+    private int size = 0;
+
+    // For a buffer made by Scanner.relex(), which of its tokens are those of the previous buffer, see previousIndex()
+    private TokenBuffer previous = null;
+    // Our tokens [0, kept) are the previous ones
+    private int kept = 0;
+    // Our tokens from movedTo on are the previous ones from movedFrom on (-1 if relex() scanned to the end),
+    // lineDelta lines further, and columnDelta columns further for those that were on movedLine
+    private int movedFrom = -1;
+    private int movedTo = -1;
+    private int lineDelta = 0;
+    private int movedLine = -1;
+    private int columnDelta = 0;
+
+    /**
+     * capacity is a guess (the arrays grow if there are more tokens), the Scanner guesses one token every 4 bytes
+     */
+    TokenBuffer(ByteBuffer source, int capacity) {
+        this(source, capacity, new SymbolTable());
+    }
+
+    /**
+     * A buffer whose identifiers get their symbols from an existing table, see Scanner.relex()
+     */
+    TokenBuffer(ByteBuffer source, int capacity, SymbolTable symbolTable) {
+        this.source = source;
+        this.mask = -1;
+        this.scanner = null;
+        this.symbolTable = symbolTable;
+        allocate(Math.max(16, capacity));
+    }
+
+    TokenBuffer(Scanner scanner) {
+        this.source = null;
+        this.mask = WINDOW - 1;
+        this.scanner = scanner;
+        this.symbolTable = new SymbolTable();
+        allocate(WINDOW);
+    }
+
+    private void allocate(int capacity) {
+        types = new byte[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        positions = new long[capacity];
+        symbols = new int[capacity];
+    }
+
+    /**
+     * The streaming Scanner moves its text along the file, the tokens still in the window must be in it
+     */
+    void text(ByteBuffer source, int base) {
+        this.source = source;
+        this.base = base;
+    }
+
+    /**
+     * Offset in the file of the last token, the streaming Scanner keeps the text from there on
+     */
+    int lastStart() {
+        return size == 0 ? 0 : starts[(size - 1) & mask];
+    }
+
+    SymbolTable symbolTable() {
+        return symbolTable;
+    }
+
+    void add(TokenType type, int start, int length, int line, int column) {
+        add(type, start, length, line, column, -1);
+    }
+
+    void add(TokenType type, int start, int length, int line, int column, int symbol) {
+        if (mask == -1 && size == types.length) {
+            grow(size * 2);
+        }
+        int slot = size & mask;
+        types[slot] = (byte)type.ordinal();
+        starts[slot] = start;
+        lengths[slot] = length;
+        positions[slot] = ((long)line << 32) | (column & 0xffffffffL);
+        symbols[slot] = symbol;
+        size++;
+    }
+
+    private void grow(int capacity) {
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        positions = Arrays.copyOf(positions, capacity);
+        symbols = Arrays.copyOf(symbols, capacity);
+    }
+
+    /**
+     * Add all the tokens of a buffer scanned separately (see Scanner.scanInParallel()).
+     * Its symbols are its own, they get the ids of the same names in our SymbolTable.
+     */
+    void append(TokenBuffer other) {
+        if (size + other.size > types.length) {
+            grow(Math.max(size + other.size, size * 2));
+        }
+        System.arraycopy(other.types, 0, types, size, other.size);
+        System.arraycopy(other.starts, 0, starts, size, other.size);
+        System.arraycopy(other.lengths, 0, lengths, size, other.size);
+        System.arraycopy(other.positions, 0, positions, size, other.size);
+        int[] symbolMap = new int[other.symbolTable.size()];
+        for (int symbol = 0; symbol < symbolMap.length; symbol++) {
+            symbolMap[symbol] = symbolTable.intern(other.symbolTable.name(symbol));
+        }
+        for (int i = 0; i < other.size; i++) {
+            int symbol = other.symbols[i];
+            symbols[size + i] = symbol >= 0 ? symbolMap[symbol] : -1;
+        }
+        size += other.size;
+    }
+
+    /**
+     * Add the tokens other[from, to) of a buffer with the same SymbolTable, moved by an edit before them:
+     * delta bytes and lineDelta lines further, and columnDelta columns further for the ones on line (of other)
+     */
+    void appendMoved(TokenBuffer other, int from, int to, int delta, int lineDelta, int line, int columnDelta) {
+        int count = to - from;
+        if (size + count > types.length) {
+            grow(Math.max(size + count, size * 2));
+        }
+        System.arraycopy(other.types, from, types, size, count);
+        System.arraycopy(other.lengths, from, lengths, size, count);
+        System.arraycopy(other.symbols, from, symbols, size, count);
+        for (int i = 0; i < count; i++) {
+            starts[size + i] = other.starts[from + i] + delta;
+            int tokenLine = other.line(from + i);
+            int column = other.column(from + i) + (tokenLine == line ? columnDelta : 0);
+            positions[size + i] = ((long)(tokenLine + lineDelta) << 32) | (column & 0xffffffffL);
+        }
+        size += count;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Scanner.relex() kept our first count tokens from previous
+     */
+    void keep(TokenBuffer previous, int count) {
+        this.previous = previous;
+        this.kept = count;
+    }
+
+    /**
+     * Scanner.relex() moved the tokens of previous from previousFrom on to here, from our token to on,
+     * see appendMoved()
+     */
+    void moved(int previousFrom, int to, int lineDelta, int line, int columnDelta) {
+        this.movedFrom = previousFrom;
+        this.movedTo = to;
+        this.lineDelta = lineDelta;
+        this.movedLine = line;
+        this.columnDelta = columnDelta;
+    }
+
+    TokenBuffer previous() {
+        return previous;
+    }
+
+    /**
+     * The index in previous() of our tokens [from, to), if they are all tokens that relex() did not scan again
+     * and that are still on the same lines and columns, -1 otherwise. For Parser.reparse():
+     * a tree built from those tokens is the tree the Parser would build from ours, Tokens included.
+     */
+    int previousIndex(int from, int to) {
+        if (previous == null) {
+            return -1;
+        }
+        if (to <= kept) {
+            return from;
+        }
+        if (movedFrom >= 0 && from >= movedTo) {
+            int index = from - movedTo + movedFrom;
+            // Moved tokens keep their positions if no line was added or removed, and they are past the edited line
+            if (lineDelta == 0 && (columnDelta == 0 || previous.line(index) > movedLine)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * All the tokens of the file are here, up to its EOF: false for the window of a streaming Scanner
+     */
+    boolean complete() {
+        return scanner == null;
+    }
+
+    /**
+     * The Parser always asks for the type of a token before anything else about it,
+     * so this is where a streaming Scanner is told to scan further
+     */
+    TokenType type(int index) {
+        if (index >= size && scanner != null) {
+            scanner.scanUntil(index);
+        }
+        return TYPES[types[index & mask]];
+    }
+
+    /**
+     * Offset in the file of the first byte of the token
+     */
+    int start(int index) {
+        return starts[index & mask];
+    }
+
+    int length(int index) {
+        return lengths[index & mask];
+    }
+
+    int line(int index) {
+        return (int)(positions[index & mask] >> 32);
+    }
+
+    int column(int index) {
+        return (int)positions[index & mask];
+    }
+
+    int symbol(int index) {
+        return symbols[index & mask];
+    }
+
+    /**
+     * An identifier gets the one String of its symbol, anything else is decoded from the source
+     */
+    String lexeme(int index) {
+        if (symbols[index & mask] >= 0) {
+            return symbolTable.name(symbols[index & mask]);
+        }
+        int start = starts[index & mask] - base;
+        return SourceFile.decode(source, start, start + lengths[index & mask]);
+    }
+
+    /**
+     * Same values the Scanner used to store in Token.literal: a Double for a NUMBER,
+     * the text without the quotes for a STRING, null for anything else
+     */
+    Object literal(int index) {
+        switch (type(index)) {
+            case NUMBER:
+                return number(index);
+            case STRING: {
+                int start = starts[index & mask] - base;
+                return SourceFile.decode(source, start + 1, start + lengths[index & mask] - 1);
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * A NUMBER is digits with at most one '.' (see Scanner.getNumber()). Almost all of them are short:
+     * their digits make an integer m below 2^53 with f digits after the '.', both exact doubles,
+     * so m / 10^f is one correctly rounded division, the very double Double.parseDouble() returns.
+     * Only the long ones are decoded to a String and go through parseDouble().
+     */
+    private double number(int index) {
+        int start = starts[index & mask] - base;
+        int end = start + lengths[index & mask];
+        long mantissa = 0;
+        int fractionDigits = -1;
+        for (int i = start; i < end; i++) {
+            byte b = source.get(i);
+            if (b == '.') {
+                fractionDigits = 0;
+                continue;
+            }
+            mantissa = mantissa * 10 + (b - '0');
+            if (mantissa > (1L << 53)) {
+                return Double.parseDouble(SourceFile.decode(source, start, end));
+            }
+            if (fractionDigits >= 0) {
+                fractionDigits++;
+            }
+        }
+        if (fractionDigits <= 0) {
+            return mantissa;
+        }
+        if (fractionDigits >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(SourceFile.decode(source, start, end));
+        }
+        return mantissa / POWERS_OF_TEN[fractionDigits];
+    }
+
+    Token token(int index) {
+        return new Token(type(index), lexeme(index), literal(index), line(index), column(index), symbol(index));
+    }
+}
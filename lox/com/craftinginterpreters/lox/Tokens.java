@@ -6,13 +6,20 @@ class Token {
     final Object literal;
     final int line;
     final int column;
+    // For an IDENTIFIER, its id in the SymbolTable (and lexeme is the one String of that name), -1 otherwise
+    final int symbol;
 
     Token(TokenType type, String lexeme, Object literal, int line, int column) {
+        this(type, lexeme, literal, line, column, -1);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, int column, int symbol) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
         this.column = column;
+        this.symbol = symbol;
     }
 
     public String toString() {
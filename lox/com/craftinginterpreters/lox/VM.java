@@ -0,0 +1,274 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * A stack-based virtual machine that runs a Chunk produced by the BytecodeCompiler.
+ * It is an alternative to the tree-walking Interpreter (which stays the reference engine):
+ * the whole program is one flat loop over a byte array, without any accept() double dispatch.
+ * The behaviour (values, printing, error messages) must be the same as the Interpreter's.
+ */
+class VM {
+    // Marks a global or a local slot that has not been defined yet, null is a legit value (nil)
+    private static final Object UNDEFINED = new Object();
+
+    void interpret(Chunk chunk) {
+        try {
+            run(chunk);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    private void run(Chunk chunk) {
+        // Copy everything the loop touches into locals, so that the JIT can keep them in registers
+        final byte[] code = chunk.code;
+        final Object[] constants = chunk.constants.toArray();
+        final Object[] stack = new Object[chunk.maxStack + 1];
+        final Object[] locals = new Object[chunk.maxLocals];
+        final Object[] globals = new Object[chunk.globals.size()];
+        java.util.Arrays.fill(globals, UNDEFINED);
+        int sp = 0;
+        int ip = 0;
+
+        for (;;) {
+            int opStart = ip;
+            switch (code[ip++]) {
+                case OpCode.CONSTANT:
+                    stack[sp++] = constants[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case OpCode.NIL: stack[sp++] = null; break;
+                case OpCode.TRUE: stack[sp++] = true; break;
+                case OpCode.FALSE: stack[sp++] = false; break;
+                case OpCode.POP: sp--; break;
+
+                case OpCode.GET_LOCAL:
+                    stack[sp++] = locals[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case OpCode.SET_LOCAL:
+                    locals[readShort(code, ip)] = stack[sp - 1];
+                    ip += 2;
+                    break;
+                case OpCode.DEFINE_LOCAL:
+                    locals[readShort(code, ip)] = stack[--sp];
+                    ip += 2;
+                    break;
+                case OpCode.GET_GLOBAL: {
+                    Object value = globals[readShort(code, ip)];
+                    if (value == UNDEFINED) {
+                        throw undefined(chunk, opStart);
+                    }
+                    stack[sp++] = value;
+                    ip += 2;
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    if (globals[slot] == UNDEFINED) {
+                        throw undefined(chunk, opStart);
+                    }
+                    globals[slot] = stack[sp - 1];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL:
+                    // Redefinition is allowed, see Environment.define()
+                    globals[readShort(code, ip)] = stack[--sp];
+                    ip += 2;
+                    break;
+
+                case OpCode.EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], right);
+                    break;
+                }
+                case OpCode.NOT_EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], right);
+                    break;
+                }
+                case OpCode.GREATER:
+                case OpCode.GREATER_EQUAL:
+                case OpCode.LESS:
+                case OpCode.LESS_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (!(left instanceof Double) || !(right instanceof Double)) {
+                        throw new RuntimeError(chunk.tokens[opStart], "Operands must be numbers.");
+                    }
+                    double a = (double)left;
+                    double b = (double)right;
+                    switch (code[opStart]) {
+                        case OpCode.GREATER: stack[sp - 1] = a > b; break;
+                        case OpCode.GREATER_EQUAL: stack[sp - 1] = a >= b; break;
+                        case OpCode.LESS: stack[sp - 1] = a < b; break;
+                        default: stack[sp - 1] = a <= b; break;
+                    }
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (left instanceof Double && right instanceof Double) {
+                        stack[sp - 1] = (double)left + (double)right;
+                    }
+                    else if (left instanceof String && right instanceof String) {
+                        stack[sp - 1] = (String)left + (String)right;
+                    }
+                    // Challenge 7.2, p109
+                    else if (left instanceof String || right instanceof String) {
+                        stack[sp - 1] = left.toString() + right.toString();
+                    }
+                    else {
+                        throw new RuntimeError(chunk.tokens[opStart], "Both operands must be numbers or Strings");
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT:
+                case OpCode.MULTIPLY:
+                case OpCode.DIVIDE: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (!(left instanceof Double) || !(right instanceof Double)) {
+                        throw new RuntimeError(chunk.tokens[opStart], "Operands must be numbers.");
+                    }
+                    double a = (double)left;
+                    double b = (double)right;
+                    switch (code[opStart]) {
+                        case OpCode.SUBTRACT: stack[sp - 1] = a - b; break;
+                        case OpCode.MULTIPLY: stack[sp - 1] = a * b; break;
+                        default: stack[sp - 1] = a / b; break;
+                    }
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case OpCode.NEGATE:
+                    if (!(stack[sp - 1] instanceof Double)) {
+                        throw new RuntimeError(chunk.tokens[opStart], "Operand must be a number.");
+                    }
+                    stack[sp - 1] = -(double)stack[sp - 1];
+                    break;
+
+                case OpCode.PRINT:
+                    Output.print(stack[--sp]);
+                    break;
+                case OpCode.JUMP:
+                    ip += 4 + readInt(code, ip);
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if (!Interpreter.isTruthy(stack[sp - 1])) {
+                        ip += 4 + readInt(code, ip);
+                    }
+                    else {
+                        ip += 4;
+                    }
+                    break;
+                case OpCode.JUMP_IF_TRUE:
+                    if (Interpreter.isTruthy(stack[sp - 1])) {
+                        ip += 4 + readInt(code, ip);
+                    }
+                    else {
+                        ip += 4;
+                    }
+                    break;
+                case OpCode.LOOP:
+                    ip += 4 - readInt(code, ip);
+                    break;
+                case OpCode.RETURN:
+                    return;
+
+                case OpCode.UNDEFINE_LOCALS: {
+                    int first = readShort(code, ip);
+                    java.util.Arrays.fill(locals, first, first + readShort(code, ip + 2), UNDEFINED);
+                    ip += 4;
+                    break;
+                }
+                case OpCode.GET_LOCAL_OR: {
+                    Object value = locals[readShort(code, ip)];
+                    int global = readWide(code, ip + 2);
+                    int count = readShort(code, ip + 5);
+                    ip += 7;
+                    for (int i = 0; i < count && value == UNDEFINED; i++) {
+                        value = locals[readShort(code, ip + 2 * i)];
+                    }
+                    ip += 2 * count;
+                    if (value == UNDEFINED) {
+                        value = globals[global];
+                        if (value == UNDEFINED) {
+                            throw undefined(chunk, opStart);
+                        }
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case OpCode.SET_LOCAL_OR: {
+                    int slot = readShort(code, ip);
+                    int global = readWide(code, ip + 2);
+                    int count = readShort(code, ip + 5);
+                    ip += 7;
+                    for (int i = 0; i < count && locals[slot] == UNDEFINED; i++) {
+                        slot = readShort(code, ip + 2 * i);
+                    }
+                    ip += 2 * count;
+                    if (locals[slot] != UNDEFINED) {
+                        locals[slot] = stack[sp - 1];
+                    }
+                    else if (globals[global] != UNDEFINED) {
+                        globals[global] = stack[sp - 1];
+                    }
+                    else {
+                        throw undefined(chunk, opStart);
+                    }
+                    break;
+                }
+
+                // The same as CONSTANT and GET/SET/DEFINE_GLOBAL, past the first 65536 constants or globals
+                case OpCode.CONSTANT_WIDE:
+                    stack[sp++] = constants[readWide(code, ip)];
+                    ip += 3;
+                    break;
+                case OpCode.GET_GLOBAL_WIDE: {
+                    Object value = globals[readWide(code, ip)];
+                    if (value == UNDEFINED) {
+                        throw undefined(chunk, opStart);
+                    }
+                    stack[sp++] = value;
+                    ip += 3;
+                    break;
+                }
+                case OpCode.SET_GLOBAL_WIDE: {
+                    int slot = readWide(code, ip);
+                    if (globals[slot] == UNDEFINED) {
+                        throw undefined(chunk, opStart);
+                    }
+                    globals[slot] = stack[sp - 1];
+                    ip += 3;
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL_WIDE:
+                    globals[readWide(code, ip)] = stack[--sp];
+                    ip += 3;
+                    break;
+            }
+        }
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private static int readWide(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 16) | readShort(code, ip + 1);
+    }
+
+    private static int readInt(byte[] code, int ip) {
+        return (code[ip] << 24) | ((code[ip + 1] & 0xff) << 16) | readShort(code, ip + 2);
+    }
+
+    private static RuntimeError undefined(Chunk chunk, int opStart) {
+        Token name = chunk.tokens[opStart];
+        return new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+}
@@ -16,18 +16,21 @@ public class GenerateAst {
             outputDir,
             "Expr",
             Arrays.asList(
-                "Assign     : Token name, Expr value",
-                "Binary     : Expr left, Token operator, Expr right",
+                "Assign     : Token name, Expr value | int depth = -1, int slot = -1, int[] fallback = null,"
+                    + " Environment.Binding global = null",
+                "Binary     : Expr left, Token operator, Expr right | boolean numeric = false, int state = 0",
                 "Grouping   : Expr expression",
                 "Literal    : Object value",
                 "Logical    : Expr left, Token operator, Expr right",
-                "Unary      : Token operator, Expr right",
-                "Variable   : Token name"
+                "Unary      : Token operator, Expr right | boolean numeric = false",
+                // Fields after "|" are filled in by the Resolver or the Interpreter, not the Parser
+                "Variable   : Token name | int depth = -1, int slot = -1, int[] fallback = null,"
+                    + " Environment.Binding global = null"
             )
         );
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-            "Block      : List<Stmt> statements",
+            "Block      : List<Stmt> statements | int locals = 0",
             "Expression : Expr expression",
             "If         : Expr condition, Stmt thenBranch," +
                         " Stmt elseBranch",
@@ -36,7 +39,7 @@ public class GenerateAst {
             "Print      : Expr expression",
             "Break      : Expr expression",
             "Continue   : Expr expression",
-            "Var        : Token name, Expr initializer"
+            "Var        : Token name, Expr initializer | int slot = -1"
         ));
     }
 
@@ -77,6 +80,14 @@ public class GenerateAst {
         String className,
         String fieldList
     ) {
+        // Anything after "|" is an annotation: a mutable field with a default value
+        // that a later pass (e.g. the Resolver) fills in. It is not a constructor parameter.
+        String annotationList = null;
+        if (fieldList.contains("|")) {
+            annotationList = fieldList.split("\\|")[1].trim();
+            fieldList = fieldList.split("\\|")[0].trim();
+        }
+
         writer.println("\tstatic class " + className + " extends " + baseName + " {");
         // Constructor
         writer.println("\t\t" + className + "(" + fieldList + ") {");
@@ -101,6 +112,11 @@ public class GenerateAst {
         for (String field : fields) {
             writer.println("\t\tfinal " + field + ";");
         }
+        if (annotationList != null) {
+            for (String annotation : annotationList.split(", ")) {
+                writer.println("\t\t" + annotation + ";");
+            }
+        }
 
         writer.println("\t}");
     }
@@ -0,0 +1,105 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+/**
+ * Every engine (the Interpreter, --vm, --jvm and --flat) must print what the name-based lookup printed
+ * before the Resolver, for a block local whose declaration did not run ("if (c) for (var i ...)"):
+ * the same name in the enclosing blocks, then the global, else "Undefined variable".
+ * Run from the repository root:
+ *     javac -d out lox/com/craftinginterpreters/lox/*.java test/com/craftinginterpreters/lox/*.java
+ *     java -cp out com.craftinginterpreters.lox.EnginesTest
+ */
+public class EnginesTest {
+    private static final String[] ENGINES = { "interpreter", "vm", "jvm", "flat" };
+
+    // Script, its output, then the runtime error it stops on (null for none)
+    private static final String[][] CASES = {
+        { "var i = \"global\"; var run = false;\n"
+            + "{ if (run) for (var i = 0; i < 1; i = i + 1) {} print i; }\n",
+          "global\n", null },
+        { "var i = \"global\"; var run = true;\n"
+            + "{ if (run) for (var i = 0; i < 1; i = i + 1) {} print i; }\n",
+          "1\n", null },
+        // The enclosing block comes before the global, for a read and for an assignment
+        { "var i = \"global\";\n"
+            + "{ var i = \"outer\";\n"
+            + "  { if (false) for (var i = 0; i < 1; i = i + 1) {} print i; i = \"assigned\"; }\n"
+            + "  print i; }\n"
+            + "print i;\n",
+          "outer\nassigned\nglobal\n", null },
+        // An enclosing declaration that did not run either is skipped, one that did is not
+        { "var i = \"global\";\n"
+            + "{ if (false) for (var i = 1; i < 1; i = i + 1) {}\n"
+            + "  { if (false) for (var i = 2; i < 1; i = i + 1) {} print i; } }\n"
+            + "{ if (true) for (var i = 1; i < 1; i = i + 1) {}\n"
+            + "  { if (false) for (var i = 2; i < 1; i = i + 1) {} print i; } }\n",
+          "global\n1\n", null },
+        { "var i = 0;\n"
+            + "{ if (false) for (var i = 5; i < 5; i = i + 1) {} i = i + 1; }\n"
+            + "print i;\n",
+          "1\n", null },
+        // A loop body gets its slots back every iteration, not the value of the last one
+        { "var i = \"global\"; var n = 0;\n"
+            + "while (n < 3) { if (n == 1) for (var i = 10; i < 11; i = i + 1) {} print i; n = n + 1; }\n",
+          "global\n11\nglobal\n", null },
+        { "print \"before\";\n"
+            + "{ if (false) for (var z = 0; z < 1; z = z + 1) {} print z; }\n"
+            + "print \"after\";\n",
+          "before\n", "Undefined variable 'z'." },
+        { "{ if (false) for (var z = 0; z < 1; z = z + 1) {} z = 1; }\n",
+          "", "Undefined variable 'z'." },
+    };
+
+    private static final PrintStream out = System.out;
+    private static final PrintStream err = System.err;
+
+    public static void main(String[] args) {
+        // A compiled class is named after the script, there is none here
+        Lox.repl = true;
+        for (String[] test : CASES) {
+            for (String engine : ENGINES) {
+                run(engine, test[0], test[1], test[2]);
+            }
+        }
+        System.out.println("EnginesTest: " + CASES.length + " scripts on " + ENGINES.length + " engines OK");
+    }
+
+    private static void run(String engine, String script, String expected, String expectedError) {
+        Lox.useVm = engine.equals("vm");
+        Lox.useJvm = engine.equals("jvm");
+        Lox.useFlat = engine.equals("flat");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(output));
+        System.setErr(new PrintStream(errors));
+        boolean ran;
+        try {
+            ran = new Document(script).run();
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+
+        String where = engine + " on\n" + script;
+        check(where + "output", expected, output.toString());
+        if (expectedError == null) {
+            check(where + "errors", "", errors.toString());
+        }
+        else if (ran || !errors.toString().contains("Error: " + expectedError)) {
+            fail(where + "should stop on \"" + expectedError + "\", got:\n" + errors);
+        }
+    }
+
+    private static void check(String what, String expected, String actual) {
+        if (!expected.equals(actual)) {
+            fail(what + " differ:\n--- expected\n" + expected + "\n--- got\n" + actual);
+        }
+    }
+
+    private static void fail(String message) {
+        System.err.println(message);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,105 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Parser.parseInParallel() must give the trees a serial parse() gives, and on a script with parse errors,
+ * give up so that parse() reports them serially, each one once. Parser.parallelChunk is made tiny,
+ * so that small generated scripts are cut in many chunks, with an "else" or a nested block next to the cuts.
+ * Run from the repository root:
+ *     javac -d out lox/com/craftinginterpreters/lox/*.java test/com/craftinginterpreters/lox/*.java
+ *     java -cp out com.craftinginterpreters.lox.ParallelParseTest
+ */
+public class ParallelParseTest {
+    private static final String[] STATEMENTS = {
+        "var a = 1 + 2 * (3 - b);", "{ var b = a; { print a + b; } }", "if (a < 3) { a = a + 1; } else print -a;",
+        "if (a) print a; else { print b; }", "while (a > 1 and !b) { var c = a; { a = c - 2; } }",
+        "for (var i = 0; i < 3; i = i + 1) { if (i == 1) break; print i * a; }", "print (a == nil) or b;",
+        "a = b = \"s\";", "for (;;) { continue; }"
+    };
+
+    private static final String[] ERRORS = {
+        "var = 1;", "print (1;", "print 1", "}", "{ print 1;", "1 +;", "else print 1;", "if (a) }"
+    };
+
+    private static final PrintStream err = System.err;
+
+    public static void main(String[] args) {
+        // Before anything uses the common pool, this machine may have a single core
+        System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism", "4");
+        if (ForkJoinPool.getCommonPoolParallelism() < 2) {
+            fail("The common pool runs on one thread, parse() would not parse in parallel");
+        }
+        int scripts = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int parallelChunk = Parser.parallelChunk;
+        Random random = new Random(24);
+        int withErrors = 0;
+        for (int i = 0; i < scripts; i++) {
+            boolean broken = random.nextInt(3) == 0;
+            SourceFile source = new SourceFile(script(random, 5 + random.nextInt(60), broken));
+            TokenBuffer tokens = new Scanner(source).scanTokens();
+
+            Parser.parallelChunk = Integer.MAX_VALUE / 2;
+            System.setErr(capture());
+            List<Stmt> expected = new Parser(tokens, source).parse();
+            String expectedErrors = captured();
+
+            // Every chunk is at least that many tokens, parse() goes parallel from two of them
+            Parser.parallelChunk = 1 + random.nextInt(Math.max(1, tokens.size() / 2));
+            System.setErr(capture());
+            List<Stmt> statements = new Parser(tokens, source).parse();
+            String errors = captured();
+
+            String where = "Script " + i + " in chunks of " + Parser.parallelChunk + " tokens";
+            check(where + ", parse errors", expectedErrors, errors);
+            check(where + ", trees", ReparseTest.dump(expected), ReparseTest.dump(statements));
+            if (!expectedErrors.isEmpty()) {
+                withErrors++;
+            }
+        }
+        Parser.parallelChunk = parallelChunk;
+        System.out.println("ParallelParseTest: " + scripts + " scripts OK, " + withErrors + " parsed again after an error");
+    }
+
+    private static String script(Random random, int statements, boolean broken) {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < statements; i++) {
+            if (broken && random.nextInt(15) == 0) {
+                script.append(ERRORS[random.nextInt(ERRORS.length)]);
+            }
+            else {
+                script.append(STATEMENTS[random.nextInt(STATEMENTS.length)]);
+            }
+            script.append(random.nextBoolean() ? "\n" : " ");
+        }
+        return script.toString();
+    }
+
+    private static ByteArrayOutputStream errors;
+
+    private static PrintStream capture() {
+        errors = new ByteArrayOutputStream();
+        return new PrintStream(errors);
+    }
+
+    private static String captured() {
+        System.setErr(err);
+        return errors.toString();
+    }
+
+    private static void check(String what, String expected, String actual) {
+        if (!expected.equals(actual)) {
+            fail(what + " differ:\n--- expected\n" + expected + "\n--- got\n" + actual);
+        }
+    }
+
+    private static void fail(String message) {
+        System.setErr(err);
+        System.err.println(message);
+        System.exit(1);
+    }
+}
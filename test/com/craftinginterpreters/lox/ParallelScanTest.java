@@ -0,0 +1,114 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Scanner.scanInParallel() must give exactly the tokens and the scanning errors a serial scanTokens() gives.
+ * Scanner.parallelChunk is made tiny, so that small generated scripts are cut in many chunks, with strings
+ * over several lines, quotes in comments and scanning errors next to the cuts.
+ * Run from the repository root:
+ *     javac -d out lox/com/craftinginterpreters/lox/*.java test/com/craftinginterpreters/lox/*.java
+ *     java -cp out com.craftinginterpreters.lox.ParallelScanTest
+ */
+public class ParallelScanTest {
+    private static final String[] LINES = {
+        "var v = 12;\n", "print \"one line\";\n", "print \"two\nlines\";\n", "// a \"quote\" in a comment\n",
+        "if (a >= 1.5 and b != nil) { a = a - 1; }\n", "while (a < 10) a = a + 2; // \"\n", "print \"h\u00e9llo\";\n",
+        "var x = 1.2.3;\n", "print $ @;\n", "\n", "for (var i = 0; i < 3; i = i + 1) print i / 4;\n", "print \"//\";\n"
+    };
+
+    private static final PrintStream err = System.err;
+
+    public static void main(String[] args) {
+        // Before anything uses the common pool, this machine may have a single core
+        System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism", "4");
+        if (ForkJoinPool.getCommonPoolParallelism() < 2) {
+            fail("The common pool runs on one thread, scanTokens() would not scan in parallel");
+        }
+        int scripts = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int parallelChunk = Scanner.parallelChunk;
+        Random random = new Random(17);
+        for (int i = 0; i < scripts; i++) {
+            SourceFile source = new SourceFile(script(random, 5 + random.nextInt(100)));
+
+            Scanner.parallelChunk = Integer.MAX_VALUE / 2;
+            System.setErr(capture());
+            TokenBuffer expected = new Scanner(source).scanTokens();
+            String expectedErrors = captured();
+
+            // Every chunk is at least that long, scanTokens() goes parallel from two of them
+            Scanner.parallelChunk = 1 + random.nextInt(Math.max(1, source.bytes().limit() / 2));
+            System.setErr(capture());
+            TokenBuffer tokens = new Scanner(source).scanTokens();
+            String errors = captured();
+
+            String where = "Script " + i + " in chunks of " + Scanner.parallelChunk + " bytes";
+            String difference = difference(expected, tokens);
+            if (difference != null) {
+                fail(where + ": " + difference);
+            }
+            check(where + ", scanning errors", expectedErrors, errors);
+        }
+        Scanner.parallelChunk = parallelChunk;
+        System.out.println("ParallelScanTest: " + scripts + " scripts OK");
+    }
+
+    private static String difference(TokenBuffer expected, TokenBuffer actual) {
+        if (expected.size() != actual.size()) {
+            return expected.size() + " tokens expected, " + actual.size() + " in parallel";
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            if (expected.type(i) != actual.type(i)
+                    || expected.start(i) != actual.start(i)
+                    || expected.length(i) != actual.length(i)
+                    || expected.line(i) != actual.line(i)
+                    || expected.column(i) != actual.column(i)
+                    || (expected.symbol(i) < 0) != (actual.symbol(i) < 0)
+                    || !expected.lexeme(i).equals(actual.lexeme(i))
+                    || !Objects.equals(expected.literal(i), actual.literal(i))) {
+                return "token " + i + " expected " + expected.token(i) + ", got " + actual.token(i);
+            }
+        }
+        return null;
+    }
+
+    private static String script(Random random, int lines) {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            script.append(LINES[random.nextInt(LINES.length)]);
+        }
+        // Sometimes a string that runs to the end of the file
+        if (random.nextInt(5) == 0) {
+            script.append("print \"unterminated\n");
+        }
+        return script.toString();
+    }
+
+    private static ByteArrayOutputStream errors;
+
+    private static PrintStream capture() {
+        errors = new ByteArrayOutputStream();
+        return new PrintStream(errors);
+    }
+
+    private static String captured() {
+        System.setErr(err);
+        return errors.toString();
+    }
+
+    private static void check(String what, String expected, String actual) {
+        if (!expected.equals(actual)) {
+            fail(what + " differ:\n--- expected\n" + expected + "\n--- got\n" + actual);
+        }
+    }
+
+    private static void fail(String message) {
+        System.setErr(err);
+        System.err.println(message);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,84 @@
+package com.craftinginterpreters.lox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Scanner.relex() (through Document.edit()) must give exactly the tokens a full scanTokens() of the edited source gives.
+ * Random edits are chained on a generated script: each one starts from the tokens relex() made for the previous one.
+ * Run from the repository root:
+ *     javac -d out lox/com/craftinginterpreters/lox/*.java test/com/craftinginterpreters/lox/*.java
+ *     java -cp out com.craftinginterpreters.lox.RelexTest
+ */
+public class RelexTest {
+    private static final String[] INSERTS = {
+        " ", "\n", "a", "b1", "1", "2.5", ".", ";", "(", ")", "{", "}", "=", "==", "!", "<", ">=",
+        "+", "-", "*", "/", "//", "\"", "\"text\"", "var", "and", "or", "orchid", "print x;", "// note\n"
+    };
+
+    public static void main(String[] args) {
+        int edits = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        Random random = new Random(20);
+        Document document = new Document(script(random, 300));
+
+        // Most edits break the script, the scanning errors do not matter here
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int i = 0; i < edits; i++) {
+                int length = document.source().bytes().limit();
+                int offset = random.nextInt(length + 1);
+                int removed = Math.min(random.nextInt(6), length - offset);
+                String text = random.nextInt(4) == 0 ? "" : INSERTS[random.nextInt(INSERTS.length)];
+                document.edit(offset, removed, text);
+
+                TokenBuffer expected = new Scanner(document.source()).scanTokens();
+                String difference = difference(expected, document.tokens());
+                if (difference != null) {
+                    System.setErr(err);
+                    System.err.println("Edit " + i + " (replace [" + offset + ", " + (offset + removed) + ") with \""
+                        + text + "\"): " + difference);
+                    System.exit(1);
+                }
+            }
+        } finally {
+            System.setErr(err);
+        }
+        System.out.println("RelexTest: " + edits + " edits OK");
+    }
+
+    private static String difference(TokenBuffer expected, TokenBuffer actual) {
+        if (expected.size() != actual.size()) {
+            return expected.size() + " tokens expected, " + actual.size() + " after relex()";
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            if (expected.type(i) != actual.type(i)
+                    || expected.start(i) != actual.start(i)
+                    || expected.length(i) != actual.length(i)
+                    || expected.line(i) != actual.line(i)
+                    || expected.column(i) != actual.column(i)
+                    || !expected.lexeme(i).equals(actual.lexeme(i))
+                    || !Objects.equals(expected.literal(i), actual.literal(i))) {
+                return "token " + i + " expected " + expected.token(i) + ", got " + actual.token(i);
+            }
+        }
+        return null;
+    }
+
+    private static String script(Random random, int statements) {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < statements; i++) {
+            switch (random.nextInt(6)) {
+                case 0: script.append("var v").append(i).append(" = ").append(random.nextInt(1000)).append(";\n"); break;
+                case 1: script.append("print \"line ").append(i).append("\";\n"); break;
+                case 2: script.append("// comment ").append(i).append('\n'); break;
+                case 3: script.append("if (a >= 1.5 and b != nil) { a = a - 1; }\n"); break;
+                case 4: script.append("while (a < 10) a = a + 2;\n"); break;
+                default: script.append("for (var i = 0; i < 3; i = i + 1) print i * 2 / 4;\n"); break;
+            }
+        }
+        return script.toString();
+    }
+}
@@ -0,0 +1,378 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Parser.reparse() (through Document.edit()) must give the trees and the parse errors a fresh parse of the edited
+ * source gives, and once resolved, the same depths and slots: a tree reparse() reused may have been resolved
+ * for the source before the edit. Random edits are chained on a generated script, then a scripted edit moves
+ * a reused variable from global to local and back while Document.run() runs it.
+ * Run from the repository root:
+ *     javac -d out lox/com/craftinginterpreters/lox/*.java test/com/craftinginterpreters/lox/*.java
+ *     java -cp out com.craftinginterpreters.lox.ReparseTest
+ */
+public class ReparseTest {
+    private static final String[] INSERTS = {
+        " ", "\n", "a", "b", "1", ";", "(", ")", "{", "}", "{ ", "} ", "=", "==", "!", "<", "+", "-", "*",
+        "//", "var", "var a = 1;", "var b;", "and", "or", "if", "else", "while", "for", "print a;", "break;"
+    };
+
+    private static final String[] SCANNING_ERRORS = { "Unexpected character.", "Unterminated string.",
+        "Multiple decimal points." };
+
+    private static final PrintStream err = System.err;
+
+    public static void main(String[] args) {
+        int edits = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        randomEdits(edits);
+        resolverReset();
+        System.out.println("ReparseTest: " + edits + " edits OK");
+    }
+
+    private static void randomEdits(int edits) {
+        Random random = new Random(25);
+        Document document = new Document(script(random, 200));
+        document.tree();
+        for (int i = 0; i < edits; i++) {
+            int length = document.source().bytes().limit();
+            int offset = random.nextInt(length + 1);
+            int removed = Math.min(random.nextInt(6), length - offset);
+            String text = random.nextInt(4) == 0 ? "" : INSERTS[random.nextInt(INSERTS.length)];
+
+            System.setErr(capture());
+            document.edit(offset, removed, text);
+            // relex() reported the scanning errors of the text it scanned again, the fresh scan reports them all
+            String errors = withoutScanningErrors(captured());
+            SyntaxTree tree = document.tree();
+
+            System.setErr(capture());
+            TokenBuffer tokens = new Scanner(document.source()).scanTokens();
+            System.setErr(capture());
+            SyntaxTree expected = new Parser(tokens, document.source()).parseTree();
+            String expectedErrors = captured();
+
+            String where = "Edit " + i + " (replace [" + offset + ", " + (offset + removed) + ") with \"" + text + "\")";
+            check(where + ", parse errors", expectedErrors, errors);
+            check(where + ", hadError()", String.valueOf(expected.hadError()), String.valueOf(tree.hadError()));
+
+            // The trees reused still hold what the Resolver wrote for the previous edit, until they are resolved again
+            new Resolver().resolve(expected.statements);
+            new Resolver().resolve(tree.statements);
+            check(where + ", trees", dump(expected.statements), dump(tree.statements));
+        }
+    }
+
+    /**
+     * The inner block is reused by every edit below (they are all on an earlier line),
+     * while the "a" in it is a global, then a local of the outer block, then a global again
+     */
+    private static void resolverReset() {
+        Document document = new Document("var a = \"one\";\n{ var b;\n  { print a; }\n}\n");
+        check("First run", "one\n", run(document));
+        Stmt.Block inner = innerBlock(document);
+
+        // A cached global binding belongs to the Globals of the Interpreter that ran before
+        document.edit(document.text().indexOf("one"), 3, "two");
+        check("Global changed", "two\n", run(document));
+        checkReused(document, inner);
+
+        document.edit(document.text().indexOf("var b;"), 0, "var a = \"local\"; ");
+        check("Local added", "local\n", run(document));
+        checkReused(document, inner);
+
+        document.edit(document.text().indexOf("var a = \"local\"; "), "var a = \"local\"; ".length(), "");
+        check("Local removed", "two\n", run(document));
+        checkReused(document, inner);
+
+        // The run left its global binding in the reused "a", resolving it again must drop it
+        SyntaxTree expected = new Parser(new Scanner(document.source()).scanTokens(), document.source()).parseTree();
+        new Resolver().resolve(expected.statements);
+        new Resolver().resolve(document.tree().statements);
+        check("Resolved after the edits", dump(expected.statements), dump(document.tree().statements));
+    }
+
+    private static String run(Document document) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes));
+        try {
+            document.run();
+        } finally {
+            System.setOut(out);
+        }
+        return bytes.toString();
+    }
+
+    private static Stmt.Block innerBlock(Document document) {
+        Stmt.Block outer = (Stmt.Block)document.tree().statements.get(1);
+        return (Stmt.Block)outer.statements.get(outer.statements.size() - 1);
+    }
+
+    private static void checkReused(Document document, Stmt.Block inner) {
+        if (innerBlock(document) != inner) {
+            fail("The inner block was parsed again, the edit did not test the reset of a reused tree");
+        }
+    }
+
+    private static ByteArrayOutputStream errors;
+
+    private static PrintStream capture() {
+        errors = new ByteArrayOutputStream();
+        return new PrintStream(errors);
+    }
+
+    private static String captured() {
+        System.setErr(err);
+        return errors.toString();
+    }
+
+    /**
+     * Every error is 3 lines: the message, the source line and the caret
+     */
+    private static String withoutScanningErrors(String errors) {
+        String[] lines = errors.split("\n", -1);
+        StringBuilder kept = new StringBuilder();
+        for (int i = 0; i + 2 < lines.length; i += 3) {
+            boolean scanning = false;
+            for (String message : SCANNING_ERRORS) {
+                scanning |= lines[i].endsWith(message);
+            }
+            if (!scanning) {
+                kept.append(lines[i]).append('\n').append(lines[i + 1]).append('\n').append(lines[i + 2]).append('\n');
+            }
+        }
+        return kept.toString();
+    }
+
+    private static void check(String what, String expected, String actual) {
+        if (!expected.equals(actual)) {
+            fail(what + " differ:\n--- expected\n" + expected + "\n--- got\n" + actual);
+        }
+    }
+
+    private static void fail(String message) {
+        System.setErr(err);
+        System.err.println(message);
+        System.exit(1);
+    }
+
+    private static String script(Random random, int statements) {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < statements; i++) {
+            switch (random.nextInt(7)) {
+                case 0: script.append("var a = ").append(i).append(";\n"); break;
+                case 1: script.append("{ var b = a;\n  { print a + b; }\n}\n"); break;
+                case 2: script.append("if (a < ").append(i).append(") { a = a + 1; } else print -a;\n"); break;
+                case 3: script.append("while (a > 1 and !b) { var c = a; { a = c - 2; } }\n"); break;
+                case 4: script.append("{\n  for (var i = 0; i < 3; i = i + 1) { if (i == 1) break; print i * a; }\n}\n"); break;
+                case 5: script.append("{\n  if (b) for (var a = 0; a < 2; a = a + 1) print a;\n  print a;\n}\n"); break;
+                default: script.append("print (a == nil) or b;\n"); break;
+            }
+        }
+        return script.toString();
+    }
+
+    /**
+     * The whole tree with the positions of its tokens and what the Resolver wrote into it, also for ParallelParseTest
+     */
+    static String dump(List<Stmt> statements) {
+        Dump dump = new Dump();
+        for (Stmt statement : statements) {
+            dump.statement(statement);
+            dump.text.append('\n');
+        }
+        return dump.text.toString();
+    }
+
+    private static class Dump implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        final StringBuilder text = new StringBuilder();
+
+        void statement(Stmt stmt) {
+            if (stmt == null) {
+                text.append("<error>");
+            }
+            else {
+                stmt.accept(this);
+            }
+        }
+
+        void expression(Expr expr) {
+            if (expr == null) {
+                text.append("-");
+            }
+            else {
+                expr.accept(this);
+            }
+        }
+
+        void token(Token token) {
+            text.append(token.lexeme).append('@').append(token.line).append(':').append(token.column);
+        }
+
+        void variable(int depth, int slot, int[] fallback, Environment.Binding global) {
+            text.append('[').append(depth).append(',').append(slot);
+            if (fallback != null) {
+                text.append(",or").append(Arrays.toString(fallback));
+            }
+            text.append(global == null ? "" : ",cached").append(']');
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            text.append("{").append(stmt.locals);
+            for (Stmt statement : stmt.statements) {
+                text.append(' ');
+                statement(statement);
+            }
+            text.append('}');
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            expression(stmt.expression);
+            text.append(';');
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            text.append("(if ");
+            expression(stmt.condition);
+            text.append(' ');
+            statement(stmt.thenBranch);
+            if (stmt.elseBranch != null) {
+                text.append(" else ");
+                statement(stmt.elseBranch);
+            }
+            text.append(')');
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            text.append("(while ");
+            expression(stmt.condition);
+            text.append(' ');
+            statement(stmt.body);
+            text.append(')');
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            text.append("(for ");
+            if (stmt.initializer != null) {
+                statement(stmt.initializer);
+            }
+            text.append(' ');
+            expression(stmt.condition);
+            text.append(' ');
+            expression(stmt.increment);
+            text.append(' ');
+            statement(stmt.body);
+            text.append(')');
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            text.append("(print ");
+            expression(stmt.expression);
+            text.append(')');
+            return null;
+        }
+
+        @Override
+        public Void visitBreakStmt(Stmt.Break stmt) {
+            text.append("break");
+            return null;
+        }
+
+        @Override
+        public Void visitContinueStmt(Stmt.Continue stmt) {
+            text.append("continue");
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            text.append("(var ");
+            token(stmt.name);
+            text.append('[').append(stmt.slot).append("] ");
+            expression(stmt.initializer);
+            text.append(')');
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            text.append("(= ");
+            token(expr.name);
+            variable(expr.depth, expr.slot, expr.fallback, expr.global);
+            text.append(' ');
+            expression(expr.value);
+            text.append(')');
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            text.append('(');
+            token(expr.operator);
+            text.append(expr.numeric ? "[number] " : " ");
+            expression(expr.left);
+            text.append(' ');
+            expression(expr.right);
+            text.append(')');
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            text.append("(group ");
+            expression(expr.expression);
+            text.append(')');
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            text.append(expr.value instanceof String ? "\"" + expr.value + "\"" : String.valueOf(expr.value));
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            text.append('(');
+            token(expr.operator);
+            text.append(' ');
+            expression(expr.left);
+            text.append(' ');
+            expression(expr.right);
+            text.append(')');
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            text.append('(');
+            token(expr.operator);
+            text.append(expr.numeric ? "[number] " : " ");
+            expression(expr.right);
+            text.append(')');
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            token(expr.name);
+            variable(expr.depth, expr.slot, expr.fallback, expr.global);
+            return null;
+        }
+    }
+}